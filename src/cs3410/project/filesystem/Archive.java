@@ -0,0 +1,450 @@
+package cs3410.project.filesystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes tar and zip archives as streams, so that a tree can be
+ * imported from or exported to an archive without extracting it to the disk.
+ * <br><br>
+ * Tar archives are read in the ustar format, along with the GNU long name and
+ * base-256 size extensions and the <tt>path</tt> and <tt>size</tt> records of
+ * pax headers. They are written in the ustar format, using a GNU long name
+ * entry for paths that do not fit in the header and a base-256 size for files
+ * of 8 GB or more. Entries other than files and directories, such as links,
+ * are skipped when reading.
+ *
+ * @see FileSystem#importArchive(File, String)
+ * @see FileSystem#exportArchive(FSDirectory, File, boolean)
+ */
+class Archive {
+    enum Format {
+        TAR, TAR_GZ, ZIP;
+
+        /**
+         * @return The format of an archive, chosen by the extension of its name.
+         * @throws IOException If the extension is not that of a supported format
+         */
+        static Format of(String name) throws IOException {
+            name = name.toLowerCase();
+            if(name.endsWith(".tar")) return TAR;
+            if(name.endsWith(".tar.gz") || name.endsWith(".tgz")) return TAR_GZ;
+            if(name.endsWith(".zip") || name.endsWith(".jar")) return ZIP;
+            throw new IOException("Unsupported archive format: " + name);
+        }
+    }
+
+    private static final int BLOCK_SIZE = 512;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_LONG_NAME = 'L';
+    private static final byte TYPE_PAX = 'x';
+    /**
+     * The largest size that fits in the octal size field of a tar header.
+     */
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    /**
+     * Adds the entries of an archive beneath <tt>destination</tt>, creating
+     * any parent directories that do not exist. Files that already exist are
+     * skipped.
+     * @param destination The path of the directory in which to put the entries
+     * @return The number of files that were imported
+     * @throws IOException If the archive cannot be read or is malformed
+     * @throws RuntimeException If an entry's parent exists and is not a directory
+     */
+    static int read(FileSystem fs, InputStream in, Format format, String destination) throws IOException {
+        if(format == Format.ZIP) return readZip(fs, new ZipInputStream(in), destination);
+        if(format == Format.TAR_GZ) in = new GZIPInputStream(in);
+        return readTar(fs, in, destination);
+    }
+
+    private static int readZip(FileSystem fs, ZipInputStream in, String destination) throws IOException {
+        int imported = 0;
+        for(ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+            if(add(fs, destination, entry.getName(), entry.isDirectory(), in, entry.getSize())) imported++;
+        }
+        return imported;
+    }
+
+    private static int readTar(FileSystem fs, InputStream in, String destination) throws IOException {
+        int imported = 0;
+        byte[] header = new byte[BLOCK_SIZE];
+        String longName = null;
+        long paxSize = -1;
+        while(true) {
+            if(in.readNBytes(header, 0, BLOCK_SIZE) < BLOCK_SIZE) throw new EOFException("Truncated tar archive");
+            if(isZero(header)) break;
+            if(checksum(header) != parseNumber(header, 148, 8)) throw new IOException("Invalid tar header");
+            byte type = header[156];
+            long size = paxSize >= 0 ? paxSize : parseNumber(header, 124, 12);
+            String name = longName;
+            if(name == null) {
+                name = parseString(header, 0, 100);
+                String prefix = parseString(header, 345, 155);
+                // Only the ustar format has a prefix, which the GNU format uses for other fields
+                if(isUstar(header) && !prefix.isEmpty()) name = prefix + "/" + name;
+            }
+            if(type == TYPE_LONG_NAME || type == TYPE_PAX) {
+                byte[] data = readBlocks(in, size);
+                if(type == TYPE_LONG_NAME) {
+                    longName = parseString(data, 0, data.length);
+                } else {
+                    for(String record : parsePax(data)) {
+                        if(record.startsWith("path=")) longName = record.substring(5);
+                        if(record.startsWith("size=")) paxSize = Long.parseLong(record.substring(5));
+                    }
+                }
+                continue;
+            }
+            longName = null;
+            paxSize = -1;
+            boolean file = type == TYPE_FILE || type == 0 || type == '7';
+            boolean directory = type == TYPE_DIRECTORY || (file && name.endsWith("/"));
+            // The number of bytes of the entry's contents that have not been read
+            long unread = size;
+            if(directory) {
+                add(fs, destination, name, true, InputStream.nullInputStream(), 0);
+            } else if(file) {
+                InputStream contents = new BoundedInputStream(in, size);
+                if(add(fs, destination, name, false, contents, size)) imported++;
+                skipFully(contents, Long.MAX_VALUE);
+                unread = 0;
+            }
+            skipFully(in, unread);
+            skipFully(in, padding(size));
+        }
+        return imported;
+    }
+
+    /**
+     * Adds a single entry of an archive.
+     * @param size The size of the entry's contents, or -1 if it is not known
+     * @return Whether a file was imported
+     */
+    private static boolean add(FileSystem fs, String destination, String name, boolean directory, InputStream in,
+            long size) throws IOException {
+        String path = normalize(name);
+        if(path == null) return false;
+        path = destination + "/" + path;
+        String targetName = path.substring(path.lastIndexOf('/') + 1);
+        FSDirectory parent = fs.createParents(fs.root, path);
+        FileSystemObject existing = parent.getChild(targetName);
+        if(directory) {
+            if(existing == null) {
+                fs.newDirectory(parent, targetName);
+            } else if(!existing.isDirectory()) {
+                throw new RuntimeException("Error while importing archive: '" + existing.name
+                        + "' exists and is not a directory");
+            }
+            return false;
+        }
+        if(existing != null) return false;
+        fs.newFile(parent, targetName).write(readContents(in, size), null);
+        return true;
+    }
+
+    /**
+     * @return The path of an entry relative to the directory it is imported
+     *         into, without empty or <tt>.</tt> parts, or <tt>null</tt> if
+     *         the entry refers to the directory itself or lies outside of it.
+     */
+    private static String normalize(String name) {
+        List<String> parts = new ArrayList<>();
+        for(String part : name.split("/")) {
+            if(part.isEmpty() || part.equals(".")) continue;
+            if(part.equals("..")) return null;
+            parts.add(part);
+        }
+        return parts.isEmpty() ? null : String.join("/", parts);
+    }
+
+    /**
+     * @return The contents of an entry, in a single buffer if their size is
+     *         known and they fit in one array, otherwise in chunks of
+     *         {@link FSFile#CHUNK_SIZE}.
+     */
+    private static ByteBuffer[] readContents(InputStream in, long size) throws IOException {
+        if(size >= 0 && size <= FSFile.MAX_ARRAY_SIZE) {
+            byte[] contents = in.readNBytes((int) size);
+            if(contents.length < size) throw new EOFException("Truncated archive entry");
+            return new ByteBuffer[] { ByteBuffer.wrap(contents) };
+        }
+        List<ByteBuffer> chunks = new ArrayList<>();
+        while(true) {
+            byte[] chunk = in.readNBytes(FSFile.CHUNK_SIZE);
+            if(chunk.length > 0 || chunks.isEmpty()) chunks.add(ByteBuffer.wrap(chunk));
+            if(chunk.length < FSFile.CHUNK_SIZE) break;
+        }
+        return chunks.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Writes <tt>dir</tt> and everything beneath it to an archive. The paths
+     * of the entries are relative to <tt>dir</tt>, and the contents of each
+     * file are streamed to the archive without loading them into memory.
+     * @throws IOException
+     */
+    static void write(FileSystem fs, FSDirectory dir, OutputStream out, Format format) throws IOException {
+        List<FileSystemObject> objects = new ArrayList<>();
+        fs.traverse(dir, obj -> {
+            if(obj != dir) objects.add(obj);
+        });
+        String base = dir.getPath();
+        if(format == Format.ZIP) {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            for(FileSystemObject obj : objects) {
+                String name = obj.getPath().substring(base.length() + 1);
+                zip.putNextEntry(new ZipEntry(obj.isDirectory() ? name + "/" : name));
+                if(!obj.isDirectory()) {
+                    try(InputStream in = ((FSFile) obj).openInputStream()) {
+                        in.transferTo(zip);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+            return;
+        }
+        GZIPOutputStream gzip = format == Format.TAR_GZ ? new GZIPOutputStream(out) : null;
+        if(gzip != null) out = gzip;
+        long time = System.currentTimeMillis() / 1000;
+        for(FileSystemObject obj : objects) {
+            String name = obj.getPath().substring(base.length() + 1) + (obj.isDirectory() ? "/" : "");
+            long size = obj.isDirectory() ? 0 : obj.getSize();
+            writeHeader(out, name, obj.isDirectory() ? TYPE_DIRECTORY : TYPE_FILE, size, time);
+            if(!obj.isDirectory()) {
+                try(InputStream in = ((FSFile) obj).openInputStream()) {
+                    in.transferTo(out);
+                }
+                out.write(new byte[(int) padding(size)]);
+            }
+        }
+        out.write(new byte[BLOCK_SIZE * 2]);
+        if(gzip != null) gzip.finish();
+    }
+
+    /**
+     * Writes the header of a tar entry, preceded by a GNU long name entry if
+     * the name does not fit in the header.
+     */
+    private static void writeHeader(OutputStream out, String name, byte type, long size, long time)
+            throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[BLOCK_SIZE];
+        int split = splitName(bytes);
+        if(split < 0) {
+            writeHeader(out, "././@LongLink", TYPE_LONG_NAME, bytes.length + 1, time);
+            out.write(bytes);
+            // The name is followed by a NUL byte and padded to a whole block
+            out.write(new byte[1 + (int) padding(bytes.length + 1)]);
+            System.arraycopy(bytes, 0, header, 0, 100);
+        } else {
+            System.arraycopy(bytes, split, header, 0, bytes.length - split);
+            if(split > 0) System.arraycopy(bytes, 0, header, 345, split - 1);
+        }
+        putOctal(header, 100, 8, type == TYPE_DIRECTORY ? 0755 : 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        if(size <= MAX_OCTAL_SIZE) {
+            putOctal(header, 124, 12, size);
+        } else {
+            // Base-256, marked by the high bit of the first byte
+            header[124] = (byte) 0x80;
+            for(int i = 135; i > 127; i--, size >>>= 8) {
+                header[i] = (byte) size;
+            }
+        }
+        putOctal(header, 136, 12, time);
+        header[156] = type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        putOctal(header, 148, 7, checksum(header));
+        out.write(header);
+    }
+
+    /**
+     * @return The index of the byte following the <tt>/</tt> at which a name
+     *         can be split into a prefix of at most 155 bytes and a name of at
+     *         most 100 bytes, 0 if the name fits on its own, or -1 if the name
+     *         cannot be split.
+     */
+    private static int splitName(byte[] name) {
+        if(name.length <= 100) return 0;
+        for(int i = Math.max(name.length - 101, 1); i <= 155 && i < name.length - 1; i++) {
+            if(name[i] == '/') return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a number in octal to a field, padded with zeros and followed by
+     * a NUL byte.
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        octal = "0".repeat(Math.max(length - 1 - octal.length(), 0)) + octal;
+        System.arraycopy(octal.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * @return The number in a field of a tar header, which is either octal or,
+     *         if the high bit of its first byte is set, base-256.
+     */
+    private static long parseNumber(byte[] header, int offset, int length) throws IOException {
+        if((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7F;
+            for(int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xFF);
+            }
+            return value;
+        }
+        long value = 0;
+        for(int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if(b == 0 || (b == ' ' && value > 0)) break;
+            if(b == ' ') continue;
+            if(b < '0' || b > '7') throw new IOException("Invalid number in tar header");
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static String parseString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while(end < offset + length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The <tt>key=value</tt> records of a pax header.
+     */
+    private static List<String> parsePax(byte[] data) throws IOException {
+        List<String> records = new ArrayList<>();
+        int position = 0;
+        while(position < data.length && data[position] != 0) {
+            int space = position;
+            while(space < data.length && data[space] != ' ') space++;
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+            } catch(NumberFormatException e) {
+                throw new IOException("Invalid pax header", e);
+            }
+            if(length <= space - position || position + length > data.length) {
+                throw new IOException("Invalid pax header");
+            }
+            // The record ends with a newline
+            records.add(new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8));
+            position += length;
+        }
+        return records;
+    }
+
+    /**
+     * @return The sum of the bytes of a tar header, with the checksum field
+     *         counted as spaces.
+     */
+    private static long checksum(byte[] header) {
+        long sum = 0;
+        for(int i = 0; i < header.length; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Whether a tar header has the magic of the ustar format rather
+     *         than that of the GNU format.
+     */
+    private static boolean isUstar(byte[] header) {
+        return Arrays.equals(header, 257, 263, "ustar\0".getBytes(StandardCharsets.US_ASCII), 0, 6);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for(byte b : block) {
+            if(b != 0) return false;
+        }
+        return true;
+    }
+
+    private static long padding(long size) {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    /**
+     * @return The next <tt>size</tt> bytes of an archive, after which the
+     *         padding that follows them is skipped.
+     */
+    private static byte[] readBlocks(InputStream in, long size) throws IOException {
+        if(size > FSFile.CHUNK_SIZE) throw new IOException("Tar header entry too large: " + size);
+        byte[] data = in.readNBytes((int) size);
+        if(data.length < size) throw new EOFException("Truncated tar archive");
+        skipFully(in, padding(size));
+        return data;
+    }
+
+    /**
+     * Skips up to <tt>count</tt> bytes, or to the end of the stream.
+     */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while(count > 0) {
+            long skipped = in.skip(count);
+            if(skipped <= 0) {
+                if(in.read() < 0) return;
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * A view of the next <tt>remaining</tt> bytes of another stream, which is
+     * not closed along with the view.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long remaining) {
+            this.in = in;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0) return -1;
+            int b = in.read();
+            if(b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if(n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            if(skipped > 0) remaining -= skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package cs3410.project.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps track of which fixed-size blocks of a block-based container are in use.
+ * <br>
+ * Allocations are returned as extent lists: arrays of alternating block indices
+ * and block counts, each pair describing one contiguous run of blocks. For
+ * example, <tt>{ 8, 2, 20, 1 }</tt> refers to blocks 8, 9, and 20.
+ * <br>
+ * Block 0 holds the container's header and is never allocated.
+ *
+ * @see BlockLayout
+ */
+public class BlockAllocator {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public final int blockSize;
+    private final BitSet used;
+    /**
+     * The number of blocks in the container, whether or not they are in use.
+     */
+    private long blockCount;
+    /**
+     * No block before this index is free.
+     */
+    private int firstFree = 1;
+
+    public BlockAllocator(int blockSize) {
+        this.blockSize = blockSize;
+        this.used = new BitSet();
+        this.used.set(0);
+        this.blockCount = 1;
+    }
+
+    /**
+     * Creates an allocator from a free-space bitmap in which the lowest bit of
+     * the first byte represents block 0 and set bits represent blocks in use.
+     */
+    public BlockAllocator(int blockSize, long blockCount, ByteBuffer bitmap) {
+        this.blockSize = blockSize;
+        byte[] bytes = new byte[bitmap.remaining()];
+        bitmap.duplicate().get(bytes);
+        this.used = BitSet.valueOf(bytes);
+        this.used.set(0);
+        this.blockCount = Math.max(blockCount, 1);
+    }
+
+    /**
+     * @return The number of blocks in the container.
+     */
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return The number of blocks needed to hold <tt>size</tt> bytes.
+     */
+    public long blocksFor(long size) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * @return The total number of bytes that can be stored in the given extents.
+     */
+    public long capacity(long[] extents) {
+        long blocks = 0;
+        for(int i = 1; i < extents.length; i += 2) {
+            blocks += extents[i];
+        }
+        return blocks * blockSize;
+    }
+
+    /**
+     * Allocates enough blocks to hold <tt>size</tt> bytes. A single contiguous
+     * run is preferred. If none is available, the free runs are used in order and
+     * the container is grown as needed.
+     * @return The allocated extents
+     */
+    public long[] allocate(long size) {
+        long blocks = blocksFor(size);
+        if(blocks == 0) return new long[0];
+        long start = findRun(blocks);
+        if(start >= 0) {
+            mark(new long[] { start, blocks }, true);
+            return new long[] { start, blocks };
+        }
+        long[] extents = new long[0];
+        int i = firstFree;
+        while(blocks > 0) {
+            i = used.nextClearBit(i);
+            long runLength = i >= blockCount ? blocks : Math.min(blocks, used.nextSetBit(i) < 0
+                    ? blockCount - i : used.nextSetBit(i) - i);
+            extents = Arrays.copyOf(extents, extents.length + 2);
+            extents[extents.length - 2] = i;
+            extents[extents.length - 1] = runLength;
+            mark(new long[] { i, runLength }, true);
+            blocks -= runLength;
+            i += runLength;
+        }
+        return extents;
+    }
+
+    /**
+     * Allocates a single contiguous run of blocks large enough to hold
+     * <tt>size</tt> bytes, growing the container if necessary.
+     * @return The index of the first block of the run
+     */
+    public long allocateRun(long size) {
+        long blocks = Math.max(blocksFor(size), 1);
+        long start = findRun(blocks);
+        if(start < 0) {
+            // Extends the free run at the end of the container, if there is one
+            start = blockCount;
+            while(start > 1 && !used.get((int) start - 1)) start--;
+        }
+        mark(new long[] { start, blocks }, true);
+        return start;
+    }
+
+    /**
+     * @return The first block of a free run of at least <tt>blocks</tt> blocks within
+     *         the current bounds of the container, or -1 if there is none.
+     */
+    private long findRun(long blocks) {
+        int i = used.nextClearBit(firstFree);
+        while(i + blocks <= blockCount) {
+            int next = used.nextSetBit(i);
+            if(next < 0 || next - i >= blocks) return i;
+            i = used.nextClearBit(next);
+        }
+        return -1;
+    }
+
+    /**
+     * Trims <tt>extents</tt> to the number of blocks needed to hold <tt>size</tt>
+     * bytes and frees the blocks that are no longer needed.
+     * @return The remaining extents
+     */
+    public long[] shrink(long[] extents, long size) {
+        long needed = blocksFor(size);
+        long[] kept = new long[0];
+        for(int i = 0; i < extents.length; i += 2) {
+            long keep = Math.min(needed, extents[i + 1]);
+            if(keep > 0) {
+                kept = Arrays.copyOf(kept, kept.length + 2);
+                kept[kept.length - 2] = extents[i];
+                kept[kept.length - 1] = keep;
+            }
+            if(keep < extents[i + 1]) mark(new long[] { extents[i] + keep, extents[i + 1] - keep }, false);
+            needed -= keep;
+        }
+        return kept;
+    }
+
+    /**
+     * Marks the blocks in <tt>extents</tt> as used or free.
+     */
+    public void mark(long[] extents, boolean inUse) {
+        for(int i = 0; i < extents.length; i += 2) {
+            int from = (int) extents[i];
+            int to = (int) (extents[i] + extents[i + 1]);
+            if(inUse) {
+                used.set(from, to);
+                blockCount = Math.max(blockCount, to);
+                if(from <= firstFree) firstFree = used.nextClearBit(firstFree);
+            } else {
+                used.clear(from, to);
+                used.set(0);
+                firstFree = Math.max(1, Math.min(firstFree, from));
+            }
+        }
+    }
+
+    /**
+     * @return Whether every block in <tt>extents</tt> is marked as used.
+     */
+    public boolean isUsed(long[] extents) {
+        for(int i = 0; i < extents.length; i += 2) {
+            int from = (int) extents[i];
+            int to = (int) (extents[i] + extents[i + 1]);
+            if(used.nextClearBit(from) < to) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The size, in bytes, of the free-space bitmap of a container with
+     *         <tt>blockCount</tt> blocks.
+     */
+    public static long bitmapSize(long blockCount) {
+        return (blockCount + 7) / 8;
+    }
+
+    /**
+     * @return The free-space bitmap of the container, padded to
+     *         {@link #bitmapSize(long)} bytes.
+     * @see #BlockAllocator(int, long, ByteBuffer)
+     */
+    public byte[] toBitmap() {
+        return Arrays.copyOf(used.toByteArray(), (int) bitmapSize(blockCount));
+    }
+}
@@ -0,0 +1,276 @@
+package cs3410.project.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes containers whose data section is divided into fixed-size
+ * blocks, so that a file can be rewritten without moving any other file.
+ * <br><br>
+ * A block-based container sets {@link #FLAG_BLOCKS} in the flags of its header,
+ * and the header is followed by the size of each block as a four-byte integer
+ * and the index of the block at which the file table starts as an eight-byte
+ * integer. If {@link FileTableEntry#FLAG_CHECKSUMS} is set, these are followed
+ * by the CRC32C checksum of the rest of the header, the file table, and the
+ * bitmap. The header occupies block 0. The data section of the header denotes
+ * the size of the whole container, which is always a multiple of the block size.
+ * <br><br>
+ * The file table is laid out as described in {@link FileSystem#getEntries()},
+ * except that the data index of each file is replaced by its extent list: the
+ * number of extents as a four-byte integer followed by the index of the first
+ * block and the number of blocks of each extent as eight-byte integers. The
+ * size, codec, and stored size of the file precede the extent list. The
+ * free-space bitmap used by the {@link BlockAllocator} immediately follows the
+ * file table.
+ * <br><br>
+ * When the container is saved, only files whose contents have changed are
+ * written, always to newly allocated blocks. The file table and the bitmap are
+ * written to new blocks as well, and the header is updated to point at them
+ * last. Blocks that are freed during a save, including the old blocks of the
+ * changed files, are not reused until the next one. Until the header has been
+ * written, the container therefore still holds the previous save intact, so a
+ * crash during a save loses only the changes being saved.
+ */
+class BlockLayout {
+    static final int FLAG_BLOCKS = 1;
+    static final int HEADER_SIZE = FileSystem.HEADER_SIZE + 12;
+    /**
+     * The flags written to the header of block-based containers.
+     */
+    private static final int TABLE_FLAGS = FLAG_BLOCKS | FileTableEntry.FLAG_CODECS | FileTableEntry.FLAG_PARENTS
+            | FileTableEntry.FLAG_CHECKSUMS;
+    final BlockAllocator allocator;
+    /**
+     * The blocks holding the file table and the bitmap.
+     */
+    private long[] meta = new long[0];
+
+    BlockLayout(int blockSize) {
+        allocator = new BlockAllocator(blockSize);
+    }
+
+    private BlockLayout(BlockAllocator allocator, long[] meta) {
+        this.allocator = allocator;
+        this.meta = meta;
+    }
+
+    /**
+     * Reads the file table of a block-based container into <tt>fs</tt>.
+     * @param header The container's header, positioned after the size of the data section
+     * @param flags The flags in the container's header
+     * @throws IOException
+     */
+    static BlockLayout read(FileSystem fs, FileChannel channel, ByteBuffer header, int flags, long tableSize,
+            long containerSize, boolean lazy) throws IOException {
+        int blockSize = header.getInt();
+        long tableBlock = header.getLong();
+        int checksum = header.getInt();
+        if(blockSize <= 0 || containerSize % blockSize != 0) {
+            throw new IOException("Invalid block size: " + blockSize);
+        }
+        long blockCount = containerSize / blockSize;
+        long bitmapSize = BlockAllocator.bitmapSize(blockCount);
+        ContainerMapping data = new ContainerMapping(channel, 0, containerSize);
+        ByteBuffer mft = data.slice(tableBlock * blockSize, tableSize);
+        ByteBuffer bitmap = data.slice(tableBlock * blockSize + tableSize, bitmapSize);
+        if((flags & FileTableEntry.FLAG_CHECKSUMS) != 0
+                && checksum != Utils.crc32c(header.duplicate().position(0).limit(HEADER_SIZE), mft, bitmap)) {
+            throw new IOException("File table checksum mismatch");
+        }
+        BlockAllocator allocator = new BlockAllocator(blockSize, blockCount, bitmap);
+        long[] meta = { tableBlock, allocator.blocksFor(tableSize + bitmapSize) };
+        List<FileTableEntry> entries = FileTableEntry.readAll(mft, flags);
+        for(FileTableEntry entry : entries) {
+            if(entry.isDirectory()) continue;
+            long[] extents = entry.extents;
+            long capacity = 0;
+            for(int i = 0; i < extents.length; i += 2) {
+                if(extents[i] < 1 || extents[i + 1] < 0 || extents[i] + extents[i + 1] > blockCount) {
+                    throw new IOException("Extent out of bounds: " + entry.getName());
+                }
+                capacity += extents[i + 1] * blockSize;
+            }
+            if(capacity < entry.storedSize) throw new IOException("File data out of bounds: " + entry.getName());
+        }
+        List<FSDirectory> directories = new ArrayList<>();
+        List<FSFile> files = new ArrayList<>();
+        for(FileTableEntry entry : entries) {
+            FileSystemObject obj = fs.attach(entry, directories);
+            if(obj == null || obj.isDirectory()) continue;
+            FSFile file = (FSFile) obj;
+            long[] extents = entry.extents;
+            file.map(slices(data, extents, entry.storedSize, blockSize), entry.codec, entry.size);
+            file.setExtents(extents, entry.codec, entry.storedSize);
+            if(entry.hasChecksum) file.setChecksum(entry.checksum);
+            files.add(file);
+        }
+        if(!lazy) fs.materialize(files);
+        return new BlockLayout(allocator, meta);
+    }
+
+    /**
+     * @return Views of the first <tt>size</tt> bytes held in the blocks of
+     *         <tt>extents</tt>, in order.
+     * @throws IOException If the blocks cannot be mapped
+     */
+    static ByteBuffer[] slices(ContainerMapping data, long[] extents, long size, int blockSize) throws IOException {
+        List<ByteBuffer> slices = new ArrayList<>();
+        for(int i = 0; i < extents.length && size > 0; i += 2) {
+            long length = Math.min(size, extents[i + 1] * blockSize);
+            slices.addAll(Arrays.asList(data.slices(extents[i] * blockSize, length)));
+            size -= length;
+        }
+        if(slices.isEmpty()) slices.add(ByteBuffer.allocate(0));
+        return slices.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Writes the changes made to <tt>fs</tt> to a block-based container.
+     * @param fresh If true, the container is assumed to be empty and every file is written.
+     * @throws IOException
+     */
+    void write(FileSystem fs, FileChannel channel, boolean fresh) throws IOException {
+        List<long[]> toFree = new ArrayList<>();
+        if(!fresh) {
+            // Releases the blocks of deleted objects
+            for(FileSystemObject obj : fs.getDirtyObjects()) {
+                if(fs.isAttached(obj)) continue;
+                if(obj.isDirectory()) {
+                    fs.traverse((FSDirectory) obj, o -> release(o, toFree));
+                } else {
+                    release(obj, toFree);
+                }
+            }
+        }
+        List<FSFile> pending = new ArrayList<>();
+        fs.traverse(fs.root, obj -> {
+            if(!obj.isDirectory() && (fresh || !((FSFile) obj).stored)) pending.add((FSFile) obj);
+        });
+        for(FSFile file : pending) {
+            FileTableEntry entry = FileTableEntry.of(file);
+            entry.encode(fs.compression);
+            entry.computeChecksum();
+            long size = entry.storedSize;
+            // The old blocks are still referred to by the current file table, so they are never overwritten
+            if(!fresh && file.extents != null) toFree.add(file.extents);
+            long[] extents = allocator.allocate(size);
+            if(entry.contents != null) writeExtents(channel, entry.contents, extents);
+            file.setExtents(extents, entry.codec, size);
+            file.setChecksum(entry.checksum);
+        }
+
+        byte[] mft = getTable(fs);
+        long metaSize = mft.length + BlockAllocator.bitmapSize(allocator.getBlockCount());
+        while(true) {
+            // The bitmap must also account for any blocks added to hold itself
+            long needed = mft.length
+                    + BlockAllocator.bitmapSize(allocator.getBlockCount() + allocator.blocksFor(metaSize));
+            if(needed <= metaSize) break;
+            metaSize = needed;
+        }
+        long tableBlock = allocator.allocateRun(metaSize);
+        toFree.add(meta);
+        meta = new long[] { tableBlock, allocator.blocksFor(metaSize) };
+        // Nothing is allocated after this point, so the blocks are only marked free in the new bitmap
+        // and cannot be reused before the header pointing at it has been written
+        for(long[] extents : toFree) {
+            allocator.mark(extents, false);
+        }
+        allocator.mark(meta, true);
+        // Releases any blocks of the run that the bitmap turned out not to need
+        meta = allocator.shrink(meta, mft.length + BlockAllocator.bitmapSize(allocator.getBlockCount()));
+        byte[] bitmap = allocator.toBitmap();
+        long containerSize = allocator.getBlockCount() * allocator.blockSize;
+        writeFully(channel, ByteBuffer.wrap(mft), tableBlock * allocator.blockSize);
+        writeFully(channel, ByteBuffer.wrap(bitmap), tableBlock * allocator.blockSize + mft.length);
+        if(channel.size() < containerSize) {
+            writeFully(channel, ByteBuffer.allocate(1), containerSize - 1);
+        }
+        channel.force(false);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4);
+        header.put(FileSystem.MAGIC);
+        header.putInt(FileSystem.FORMAT_VERSION);
+        header.putInt(TABLE_FLAGS);
+        header.putLong(mft.length);
+        header.putLong(containerSize);
+        header.putInt(allocator.blockSize);
+        header.putLong(tableBlock);
+        header.putInt(Utils.crc32c(header.duplicate().flip(), ByteBuffer.wrap(mft), ByteBuffer.wrap(bitmap)));
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.force(false);
+    }
+
+    /**
+     * Marks the blocks of a deleted object to be freed. The contents of a file
+     * whose blocks are freed can no longer be read from the container.
+     */
+    private static void release(FileSystemObject obj, List<long[]> toFree) {
+        if(obj.isDirectory()) return;
+        FSFile file = (FSFile) obj;
+        if(file.extents == null) return;
+        toFree.add(file.extents);
+        file.extents = null;
+        file.unmap();
+    }
+
+    /**
+     * @return The file table of <tt>fs</tt> in the block-based format.
+     */
+    private static byte[] getTable(FileSystem fs) {
+        List<FileTableEntry> entries = fs.getEntries(obj -> {
+            FileTableEntry entry = FileTableEntry.named(obj);
+            if(!obj.isDirectory()) {
+                FSFile file = (FSFile) obj;
+                if(!file.hasChecksum && file.getStored() != null) file.setChecksum(Utils.crc32c(file.getStored()));
+                entry.size = file.getSize();
+                entry.codec = file.getCodec();
+                entry.storedSize = file.storedSize;
+                entry.extents = file.extents;
+                entry.checksum = file.checksum;
+            }
+            return entry;
+        });
+        int size = 0;
+        for(FileTableEntry entry : entries) {
+            size += entry.encodedSize(TABLE_FLAGS);
+        }
+        ByteBuffer mft = ByteBuffer.allocate(size);
+        for(FileTableEntry entry : entries) {
+            entry.write(mft, TABLE_FLAGS);
+        }
+        return mft.array();
+    }
+
+    /**
+     * Writes <tt>contents</tt> across the blocks in <tt>extents</tt>.
+     * @throws IOException
+     */
+    private void writeExtents(FileChannel channel, ByteBuffer[] contents, long[] extents) throws IOException {
+        int index = 0;
+        ByteBuffer buffer = contents.length == 0 ? null : contents[0].duplicate();
+        for(int i = 0; i < extents.length && buffer != null; i += 2) {
+            long position = extents[i] * allocator.blockSize;
+            long end = position + extents[i + 1] * allocator.blockSize;
+            // An extent may span several buffers, and a buffer may span several extents
+            while(buffer != null && position < end) {
+                int length = (int) Math.min(buffer.remaining(), end - position);
+                writeFully(channel, buffer.slice(buffer.position(), length), position);
+                buffer.position(buffer.position() + length);
+                position += length;
+                if(!buffer.hasRemaining()) buffer = ++index < contents.length ? contents[index].duplicate() : null;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cs3410.project.filesystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the amount of memory occupied by the contents of files that have been
+ * read from the container.
+ * <br>
+ * Files whose contents are also stored in the container are tracked in the
+ * order in which they were last accessed. When the total size of their
+ * contents exceeds the pool's capacity, the least recently used contents are
+ * discarded, and they are read from the container again the next time they
+ * are accessed. Contents that have been written since the container was last
+ * saved only exist in memory, so they are neither counted nor evicted.
+ *
+ * @see FSFile#getData()
+ */
+public class BufferPool {
+    private long capacity;
+    private long used = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+    /**
+     * The size of the contents of each resident file, in access order.
+     */
+    private final LinkedHashMap<FSFile, Long> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity The number of bytes of file contents that may be held in memory
+     */
+    public BufferPool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Records an access to the contents of a resident file.
+     */
+    synchronized void hit(FSFile file) {
+        if(resident.get(file) != null) hits++;
+    }
+
+    /**
+     * Records that the contents of <tt>file</tt> had to be read from the container.
+     * @param size The number of bytes read into memory
+     */
+    synchronized void miss(FSFile file, long size) {
+        misses++;
+        add(file, size);
+    }
+
+    /**
+     * Starts tracking the contents of a file that are already in memory, for
+     * example because they have just been saved to the container.
+     */
+    synchronized void add(FSFile file, long size) {
+        Long previous = resident.put(file, size);
+        if(previous != null) used -= previous;
+        used += size;
+        evict();
+    }
+
+    /**
+     * Stops tracking <tt>file</tt>, whose contents are no longer backed by the
+     * container or have been discarded.
+     */
+    synchronized void remove(FSFile file) {
+        Long size = resident.remove(file);
+        if(size != null) used -= size;
+    }
+
+    /**
+     * Evicts the least recently used contents until the pool is within its capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<FSFile, Long>> iterator = resident.entrySet().iterator();
+        while(used > capacity && iterator.hasNext()) {
+            Map.Entry<FSFile, Long> entry = iterator.next();
+            // Files that have been written since they were added are no longer counted either way
+            if(entry.getKey().evict()) evictions++;
+            used -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Evicts every resident file.
+     */
+    public synchronized void clear() {
+        for(FSFile file : resident.keySet()) {
+            if(file.evict()) evictions++;
+        }
+        resident.clear();
+        used = 0;
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the capacity of the pool, evicting contents if it has shrunk.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * @return The number of bytes of file contents currently held by the pool.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return The number of accesses to contents that were already in memory.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of accesses that required contents to be read from the container.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of times contents were discarded to stay within the capacity.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s / %s, %d hits, %d misses, %d evictions", Utils.humanReadableSize(used),
+                Utils.humanReadableSize(capacity), hits, misses, evictions);
+    }
+}
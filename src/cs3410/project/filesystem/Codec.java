@@ -0,0 +1,318 @@
+package cs3410.project.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the contents of files stored in a container.
+ * <br><br>
+ * Two codecs are available: {@link #DEFLATE}, which favors smaller output, and
+ * {@link #LZ}, a byte-oriented LZ77 codec that favors speed. Each sequence of
+ * the LZ format consists of a token byte whose high and low four bits hold the
+ * number of literal bytes and the length of the match minus four, the literal
+ * bytes, and the two-byte little-endian distance back to the start of the match.
+ * A length of 15 in the token is followed by additional bytes which are added to
+ * it, each byte of 255 being followed by another. The last sequence contains
+ * only literals.
+ *
+ * @see #encode(String, ByteBuffer)
+ */
+public class Codec {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    public static final byte LZ = 2;
+    /**
+     * Files smaller than this are never compressed.
+     */
+    private static final int MIN_SIZE = 64;
+    /**
+     * Files larger than this are never compressed, since their compressed
+     * contents are held in a single array.
+     */
+    public static final long MAX_SIZE = 1L << 30;
+    /**
+     * The number of bytes at the start of a file used to choose a codec.
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /**
+     * Compressed contents must be smaller than this fraction of the original
+     * size to be stored.
+     */
+    private static final double MAX_RATIO = 0.9;
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>();
+    private static boolean isMetadataLoaded = false;
+
+    /**
+     * The contents of a file as they are stored in a container.
+     */
+    public static class Encoded {
+        public final byte codec;
+        public final ByteBuffer data;
+
+        public Encoded(byte codec, ByteBuffer data) {
+            this.codec = codec;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Compresses <tt>contents</tt> if doing so is likely to pay off.
+     * <br>
+     * Files that are too small or too large, or whose type is marked as already
+     * compressed in <tt>assets/compressed-types.txt</tt>, are stored as they are.
+     * Otherwise, both codecs are tried on the start of the file. If neither makes
+     * it sufficiently smaller, the file is stored as it is. Deflate is only chosen
+     * if it does noticeably better than LZ.
+     *
+     * @param name The name of the file, used to determine its type
+     * @return The encoded contents, which may share <tt>contents</tt>
+     */
+    public static Encoded encode(String name, ByteBuffer contents) {
+        if(contents == null) return new Encoded(NONE, ByteBuffer.allocate(0));
+        int length = contents.remaining();
+        if(length < MIN_SIZE || length > MAX_SIZE || isCompressedType(name)) return new Encoded(NONE, contents);
+        byte[] array;
+        int offset;
+        if(contents.hasArray()) {
+            array = contents.array();
+            offset = contents.arrayOffset() + contents.position();
+        } else {
+            array = new byte[length];
+            contents.duplicate().get(array);
+            offset = 0;
+        }
+        int sampleSize = Math.min(length, SAMPLE_SIZE);
+        byte[] lz = lzCompress(array, offset, sampleSize);
+        if(lz.length > sampleSize * MAX_RATIO) return new Encoded(NONE, contents);
+        byte[] deflated = deflate(array, offset, sampleSize);
+        byte codec = deflated.length < lz.length * 0.85 ? DEFLATE : LZ;
+        byte[] out = codec == DEFLATE ? deflated : lz;
+        if(sampleSize < length) {
+            out = codec == DEFLATE ? deflate(array, offset, length) : lzCompress(array, offset, length);
+        }
+        if(out.length > length * MAX_RATIO) return new Encoded(NONE, contents);
+        return new Encoded(codec, ByteBuffer.wrap(out));
+    }
+
+    /**
+     * @param size The size of the decoded contents
+     * @return The decoded contents of <tt>data</tt>
+     * @throws RuntimeException If the data is corrupt or the codec is unknown
+     */
+    public static byte[] decode(byte codec, ByteBuffer data, long size) {
+        if(size > Integer.MAX_VALUE) throw new RuntimeException("File too large to decode: " + size);
+        byte[] out = new byte[(int) size];
+        data = data.duplicate();
+        try {
+            switch(codec) {
+            case NONE:
+                data.get(out);
+                break;
+            case DEFLATE:
+                inflate(data, out);
+                break;
+            case LZ:
+                lzDecompress(data, out);
+                break;
+            default:
+                throw new RuntimeException("Unknown codec: " + codec);
+            }
+        } catch(IndexOutOfBoundsException | BufferUnderflowException | DataFormatException e) {
+            throw new RuntimeException("Corrupt compressed data", e);
+        }
+        return out;
+    }
+
+    /**
+     * @param size The size of the decoded contents
+     * @return A stream of the decoded contents of <tt>data</tt>. Contents
+     *         compressed with {@link #DEFLATE} are decompressed as they are read,
+     *         and LZ contents, whose matches may refer anywhere in the preceding
+     *         output, are decoded in full first.
+     * @throws RuntimeException If LZ data is corrupt or the codec is unknown
+     */
+    public static InputStream newInputStream(byte codec, ByteBuffer[] data, long size) {
+        switch(codec) {
+        case NONE:
+            return Utils.newInputStream(data);
+        case DEFLATE:
+            return new InflaterInputStream(Utils.newInputStream(data));
+        default:
+            return Utils.newInputStream(ByteBuffer.wrap(decode(codec, Utils.concat(data), size)));
+        }
+    }
+
+    /**
+     * @return Whether the type of the file with the given name is marked as
+     *         already compressed.
+     */
+    public static boolean isCompressedType(String name) {
+        if(!name.contains(".")) return false;
+        loadMetadata();
+        String mimeType = MIME_TYPES.get(name.substring(name.lastIndexOf('.')).toLowerCase());
+        return mimeType != null && COMPRESSED_TYPES.contains(mimeType);
+    }
+
+    /**
+     * Loads the type associations and the list of compressed types if an
+     * <tt>assets</tt> directory exists in the working directory of the program.
+     */
+    private static synchronized void loadMetadata() {
+        if(isMetadataLoaded) return;
+        isMetadataLoaded = true;
+        File assetsDir = new File("assets");
+        File mimeFile = new File(assetsDir, "mime-types.txt");
+        File compressedFile = new File(assetsDir, "compressed-types.txt");
+        if(!mimeFile.exists() || !compressedFile.exists()) return;
+        try {
+            for(String line : Files.readAllLines(mimeFile.toPath())) {
+                String[] split = line.split(":", 2);
+                for(String extension : split[1].split(" ")) {
+                    MIME_TYPES.put(extension, split[0]);
+                }
+            }
+            for(String line : Files.readAllLines(compressedFile.toPath())) {
+                if(!line.isBlank()) COMPRESSED_TYPES.add(line.trim());
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] deflate(byte[] array, int offset, int length) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(array, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void inflate(ByteBuffer data, byte[] out) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int n = 0;
+            while(n < out.length && !inflater.finished()) {
+                int read = inflater.inflate(out, n, out.length - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated deflate stream");
+                }
+                n += read;
+            }
+            if(n != out.length) throw new DataFormatException("Deflate stream too short");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int readInt(byte[] array, int i) {
+        return (array[i] & 0xFF) | (array[i + 1] & 0xFF) << 8 | (array[i + 2] & 0xFF) << 16 | (array[i + 3] & 0xFF) << 24;
+    }
+
+    private static byte[] lzCompress(byte[] in, int start, int length) {
+        int end = start + length;
+        byte[] out = new byte[length + length / 255 + 16];
+        int[] table = new int[1 << 16];
+        int op = 0;
+        int anchor = start;
+        int i = start;
+        // The last bytes of the input are always stored as literals
+        int matchLimit = end - 12;
+        while(i < matchLimit) {
+            int sequence = readInt(in, i);
+            int hash = (sequence * -1640531535) >>> 16;
+            int ref = table[hash] - 1;
+            table[hash] = i + 1;
+            if(ref < start || i - ref > 0xFFFF || readInt(in, ref) != sequence) {
+                i++;
+                continue;
+            }
+            int matchLength = 4;
+            while(i + matchLength < end - 5 && in[ref + matchLength] == in[i + matchLength]) {
+                matchLength++;
+            }
+            int literals = i - anchor;
+            out[op++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength - 4, 15));
+            if(literals >= 15) op = writeLength(out, op, literals - 15);
+            System.arraycopy(in, anchor, out, op, literals);
+            op += literals;
+            out[op++] = (byte) (i - ref);
+            out[op++] = (byte) ((i - ref) >>> 8);
+            if(matchLength - 4 >= 15) op = writeLength(out, op, matchLength - 4 - 15);
+            i += matchLength;
+            anchor = i;
+        }
+        int literals = end - anchor;
+        out[op++] = (byte) (Math.min(literals, 15) << 4);
+        if(literals >= 15) op = writeLength(out, op, literals - 15);
+        System.arraycopy(in, anchor, out, op, literals);
+        op += literals;
+        return Arrays.copyOf(out, op);
+    }
+
+    private static int writeLength(byte[] out, int op, int length) {
+        while(length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readLength(ByteBuffer in) {
+        int length = 0;
+        int b;
+        do {
+            b = in.get() & 0xFF;
+            length += b;
+        } while(b == 255);
+        return length;
+    }
+
+    private static void lzDecompress(ByteBuffer in, byte[] out) throws DataFormatException {
+        int op = 0;
+        while(in.hasRemaining()) {
+            int token = in.get() & 0xFF;
+            int literals = token >>> 4;
+            if(literals == 15) literals += readLength(in);
+            in.get(out, op, literals);
+            op += literals;
+            if(!in.hasRemaining()) break;
+            int distance = (in.get() & 0xFF) | (in.get() & 0xFF) << 8;
+            int matchLength = token & 15;
+            if(matchLength == 15) matchLength += readLength(in);
+            matchLength += 4;
+            int ref = op - distance;
+            if(distance == 0 || ref < 0 || op + matchLength > out.length) {
+                throw new DataFormatException("Invalid match");
+            }
+            // Matches may overlap the bytes they produce, so they are copied one byte at a time
+            for(int k = 0; k < matchLength; k++) {
+                out[op + k] = out[ref + k];
+            }
+            op += matchLength;
+        }
+        if(op != out.length) throw new DataFormatException("LZ stream too short");
+    }
+}
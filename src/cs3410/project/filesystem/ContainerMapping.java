@@ -0,0 +1,83 @@
+package cs3410.project.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a region of a container that may be larger than
+ * a single <tt>MappedByteBuffer</tt> can address. The region is mapped in
+ * fixed-size windows as they are needed. Slices that cross the boundary between
+ * two windows are mapped on their own.
+ * <br>
+ * Slices remain valid after the channel is closed, but new slices can only be
+ * created while it is open.
+ */
+class ContainerMapping {
+    private static final long WINDOW_SIZE = 1L << 30;
+    private final FileChannel channel;
+    private final long start;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    /**
+     * @param start The position of the region within the container
+     * @param size The size of the region, in bytes
+     */
+    ContainerMapping(FileChannel channel, long start, long size) {
+        this.channel = channel;
+        this.start = start;
+        this.size = size;
+        this.windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+    }
+
+    /**
+     * @param offset The offset of the slice relative to the start of the region
+     * @param length The length of the slice, in bytes
+     * @return A read-only view of the given part of the region
+     * @throws IOException If the slice lies outside of the region or cannot be mapped
+     */
+    ByteBuffer slice(long offset, long length) throws IOException {
+        if(offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException(String.format("Invalid region (%d + %d > %d)", offset, length, size));
+        }
+        if(length > Integer.MAX_VALUE) {
+            throw new IOException("Region too large to map: " + length);
+        }
+        if(length == 0) return ByteBuffer.allocate(0);
+        int window = (int) (offset / WINDOW_SIZE);
+        if((offset + length - 1) / WINDOW_SIZE != window) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start + offset, length);
+        }
+        if(windows[window] == null) {
+            long windowStart = window * WINDOW_SIZE;
+            windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, start + windowStart,
+                    Math.min(WINDOW_SIZE, size - windowStart));
+        }
+        return windows[window].slice((int) (offset % WINDOW_SIZE), (int) length);
+    }
+
+    /**
+     * @param offset The offset of the slices relative to the start of the region
+     * @param length The total length of the slices, in bytes
+     * @return Read-only views of the given part of the region, in order. Parts
+     *         that are too large for a single buffer are split at the boundaries
+     *         between windows.
+     * @throws IOException If the part lies outside of the region or cannot be mapped
+     */
+    ByteBuffer[] slices(long offset, long length) throws IOException {
+        if(length <= Integer.MAX_VALUE) return new ByteBuffer[] { slice(offset, length) };
+        if(offset < 0 || offset + length > size) {
+            throw new IOException(String.format("Invalid region (%d + %d > %d)", offset, length, size));
+        }
+        ByteBuffer[] slices = new ByteBuffer[(int) ((offset + length - 1) / WINDOW_SIZE - offset / WINDOW_SIZE + 1)];
+        for(int i = 0; i < slices.length; i++) {
+            long end = Math.min((offset / WINDOW_SIZE + 1) * WINDOW_SIZE, offset + length);
+            slices[i] = slice(offset, end - offset);
+            length -= end - offset;
+            offset = end;
+        }
+        return slices;
+    }
+}
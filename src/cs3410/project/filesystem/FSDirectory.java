@@ -1,7 +1,19 @@
 package cs3410.project.filesystem;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 public class FSDirectory extends FileSystemObject {
-    public FileSet children = new FileSet();
+    public FileSet children = new FileSet(this);
+    /**
+     * The total size of the files beneath the directory.
+     */
+    private long totalSize = 0;
+    /**
+     * The number of files and directories beneath the directory.
+     */
+    private long descendants = 0;
 
     public FSDirectory(FSDirectory parent, String name) {
         super(parent, name);
@@ -16,12 +28,7 @@ public class FSDirectory extends FileSystemObject {
      *         otherwise <tt>null</tt>.
      */
     public FileSystemObject getChild(String name) {
-        for(FileSystemObject child : children) {
-            if(child.name.equals(name)) {
-                return child;
-            }
-        }
-        return null;
+        return children.get(name);
     }
 
     /**
@@ -32,21 +39,88 @@ public class FSDirectory extends FileSystemObject {
      * Returns -1 if the given object is not a child of the FSDirectory.
      */
     public int getChildIndex(FileSystemObject child) {
-        for(int i = 0; i < children.size(); i++) {
-            if(children.get(i).equals(child)) return i;
+        return children.indexOf(child);
+    }
+
+    /**
+     * Adds several objects to the directory at once, which takes
+     * O(n + m log m) time for <tt>m</tt> objects rather than O(n) per object.
+     * Objects whose names are already taken are skipped.
+     * @return The number of objects that were added
+     */
+    public int addChildren(Collection<? extends FileSystemObject> objects) {
+        for(FileSystemObject obj : objects) {
+            if(getChild(obj.name) == null && obj.parent != this) {
+                obj.parent = this;
+                obj.invalidatePath();
+            }
         }
-        return -1;
+        return children.addBatch(objects);
     }
 
     /**
-     * @return The sum of the sizes of the FSDirectory's children.
+     * Removes several children from the directory at once, which takes
+     * O(n + m) time for <tt>m</tt> objects. Objects that are not children of
+     * the directory are ignored.
+     * @return The number of objects that were removed
      */
-    @Override
-    public int getSize() {
-        int sum = 0;
-        for(FileSystemObject child : children) {
-            sum += child.getSize();
+    public int removeChildren(Collection<? extends FileSystemObject> objects) {
+        return children.removeBatch(objects);
+    }
+
+    /**
+     * Moves several children of the directory into <tt>target</tt> at once.
+     * Objects that are not children of the directory, or whose names are
+     * already taken in <tt>target</tt>, are not moved.
+     * @return The number of objects that were moved
+     * @throws RuntimeException If a directory would be moved into itself or
+     *                          one of its descendants
+     */
+    public int moveChildren(Collection<? extends FileSystemObject> objects, FSDirectory target) {
+        if(target == this) return 0;
+        List<FileSystemObject> toMove = new ArrayList<>();
+        for(FileSystemObject obj : objects) {
+            if(!children.contains(obj) || target.getChild(obj.name) != null) continue;
+            for(FSDirectory dir = target; dir != null; dir = dir.parent) {
+                if(dir == obj) throw new RuntimeException("Cannot move '" + obj + "' into itself");
+            }
+            toMove.add(obj);
         }
-        return sum;
+        // The objects are removed while they still have their old paths
+        children.removeBatch(toMove);
+        return target.addChildren(toMove);
+    }
+
+    /**
+     * @return The total size of the files beneath the directory. The total is
+     *         kept up to date as files are written, added, deleted, and moved,
+     *         so this takes constant time.
+     */
+    @Override
+    public long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return The number of files and directories beneath the directory, in
+     *         constant time.
+     */
+    public long getDescendantCount() {
+        return descendants;
+    }
+
+    /**
+     * Adds to the totals of this directory and of the directories above it.
+     * @see #updateAncestors(long, long)
+     */
+    void updateTotals(long bytes, long objects) {
+        if(bytes == 0 && objects == 0) return;
+        addTotals(bytes, objects);
+        updateAncestors(bytes, objects);
+    }
+
+    void addTotals(long bytes, long objects) {
+        totalSize += bytes;
+        descendants += objects;
     }
 }
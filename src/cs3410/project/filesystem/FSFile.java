@@ -1,9 +1,104 @@
 package cs3410.project.filesystem;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 public class FSFile extends FileSystemObject {
-    public byte[] data;
+    /**
+     * The size of the chunks in which large contents are read into memory and
+     * changed through an {@link FSFileChannel}.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * The largest array that can be allocated on most virtual machines.
+     */
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    /**
+     * Appending to contents whose last chunk is smaller than this copies that
+     * chunk rather than adding another one, so that many small appends do not
+     * leave behind many small chunks.
+     */
+    private static final int MERGE_SIZE = 4096;
+    /**
+     * The file's contents in memory, as a sequence of heap buffers whose
+     * contents are never modified once they have been stored, so that a save
+     * running in the background can keep reading them. Appending to a file adds
+     * buffers without copying the existing ones, and files larger than a single
+     * array are held in several buffers.
+     */
+    private ByteBuffer[] data;
+    /**
+     * Read-only views of the file's contents within a memory-mapped container,
+     * in order. While this is set, {@link #data} may be discarded and read again.
+     * @see FileSystem#readContainer(boolean)
+     * @see BufferPool
+     */
+    private ByteBuffer[] source;
+    /**
+     * Whether {@link #source} is a view of an external file rather than of the
+     * container, in which case the contents have not been stored yet.
+     * @see #link(ByteBuffer[], byte[])
+     */
+    private boolean linked = false;
+    /**
+     * The codec with which {@link #source}, or the contents stored in
+     * {@link #extents}, are compressed.
+     * @see Codec
+     */
+    private byte codec = Codec.NONE;
+    /**
+     * The size of the decoded contents of {@link #source}.
+     */
+    private long sourceSize;
+    /**
+     * The blocks holding the file's contents in a block-based container, or
+     * <tt>null</tt> if none have been allocated.
+     * @see BlockLayout
+     */
+    long[] extents;
+    /**
+     * Whether {@link #extents} hold the file's current contents.
+     */
+    boolean stored = false;
+    /**
+     * The number of bytes the file's contents occupy in {@link #extents}.
+     */
+    long storedSize;
+    /**
+     * The SHA-256 digest of the file's contents, or <tt>null</tt> if it has not
+     * been computed since they last changed.
+     * @see FileSystem#hash(ByteBuffer...)
+     */
+    byte[] hash;
+    /**
+     * The CRC32C checksum of the contents stored in the container, if
+     * {@link #hasChecksum} is set.
+     */
+    int checksum;
+    boolean hasChecksum = false;
+    /**
+     * Whether {@link #source} has been checked against {@link #checksum}.
+     */
+    private boolean verified = false;
+    /**
+     * Incremented whenever the file's contents are replaced, so that a save
+     * running in the background can tell whether the contents it captured are
+     * still current.
+     * @see FileSystem#writeContainerInBackground()
+     */
+    int revision = 0;
+    /**
+     * The size of the file that is included in the totals of the directories
+     * above it.
+     * @see #updateSize()
+     */
+    private long countedSize = 0;
 
     public FSFile(FSDirectory parent, String name) {
         super(parent, name);
@@ -13,11 +108,466 @@ public class FSFile extends FileSystemObject {
         super(name);
     }
 
+    /**
+     * @return The file's contents, or <tt>null</tt> if the file has never been
+     * written to. If the contents are not in memory, they are read from the
+     * container and decompressed if they were compressed. Contents read from the
+     * container are held by the file system's {@link BufferPool}, so they may be
+     * discarded again later. Contents held in several chunks are joined into a
+     * single array, which then replaces the chunks.
+     * @throws RuntimeException If the contents read from the container do not
+     *         match their checksum, or if they are too large for a single array
+     * @see #openInputStream()
+     */
+    public byte[] getData() {
+        ByteBuffer[] data = load();
+        if(data == null) return null;
+        if(data.length == 1 && isWholeArray(data[0])) return data[0].array();
+        long size = Utils.remaining(data);
+        if(size > MAX_ARRAY_SIZE) throw new RuntimeException("File too large for a single array: " + getPath());
+        byte[] array = new byte[(int) size];
+        ByteBuffer joined = ByteBuffer.wrap(array);
+        for(ByteBuffer chunk : data) {
+            joined.put(chunk.duplicate());
+        }
+        synchronized(this) {
+            if(this.data == data) this.data = new ByteBuffer[] { ByteBuffer.wrap(array) };
+        }
+        return array;
+    }
+
+    /**
+     * @return The file's contents in memory, after reading them from the
+     * container if they were not in memory yet, or <tt>null</tt> if the file
+     * has never been written to.
+     * @throws RuntimeException If the contents read from the container do not
+     *         match their checksum
+     */
+    ByteBuffer[] load() {
+        ByteBuffer[] data = this.data;
+        boolean miss = false;
+        if(data == null) {
+            // A background save may be moving the contents to the new container
+            synchronized(this) {
+                data = this.data;
+                if(data == null && source != null) {
+                    data = decode();
+                    this.data = data;
+                    miss = true;
+                }
+            }
+        }
+        if(miss && Main.fs != null) {
+            Main.fs.bufferPool.miss(this, Utils.remaining(data));
+        } else if(data != null && source != null && Main.fs != null) {
+            Main.fs.bufferPool.hit(this);
+        }
+        return data;
+    }
+
+    /**
+     * @return The decoded contents of {@link #source}, copied into a single
+     * array if they fit in one, otherwise into chunks of {@link #CHUNK_SIZE}.
+     */
+    private ByteBuffer[] decode() {
+        ByteBuffer[] source = checkedSource();
+        if(codec != Codec.NONE) {
+            return new ByteBuffer[] { ByteBuffer.wrap(Codec.decode(codec, Utils.concat(source), sourceSize)) };
+        }
+        // The contents are copied, since the part of the container they are mapped from may be reused
+        if(sourceSize <= MAX_ARRAY_SIZE) {
+            ByteBuffer copy = ByteBuffer.allocate((int) sourceSize);
+            for(ByteBuffer slice : source) {
+                copy.put(slice.duplicate());
+            }
+            return new ByteBuffer[] { copy.flip() };
+        }
+        ByteBuffer[] chunks = new ByteBuffer[(int) ((sourceSize + CHUNK_SIZE - 1) / CHUNK_SIZE) + source.length];
+        int i = 0;
+        for(ByteBuffer slice : source) {
+            for(int offset = 0; offset < slice.remaining(); offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, slice.remaining() - offset);
+                chunks[i++] = ByteBuffer.allocate(length).put(slice.slice(slice.position() + offset, length)).flip();
+            }
+        }
+        return Arrays.copyOf(chunks, i);
+    }
+
+    private static boolean isHeap(ByteBuffer[] buffers) {
+        for(ByteBuffer buffer : buffers) {
+            if(!buffer.hasArray()) return false;
+        }
+        return true;
+    }
+
+    private static boolean isWholeArray(ByteBuffer buffer) {
+        return buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length;
+    }
+
+    /**
+     * @return A stream of the file's contents that does not load them into
+     * memory. Contents that are stored uncompressed in the container are read
+     * straight from it, and contents compressed with {@link Codec#DEFLATE} are
+     * decompressed as they are read.
+     * @throws RuntimeException If the contents read from the container do not
+     *         match their checksum
+     * @see Codec#newInputStream(byte, ByteBuffer[], long)
+     */
+    public InputStream openInputStream() {
+        ByteBuffer[] contents;
+        byte codec;
+        long size;
+        synchronized(this) {
+            if(data != null || source == null) {
+                return Utils.newInputStream(data == null ? new ByteBuffer[0] : data);
+            }
+            contents = checkedSource();
+            codec = this.codec;
+            size = sourceSize;
+        }
+        return Codec.newInputStream(codec, contents, size);
+    }
+
+    /**
+     * Writes the file's contents to <tt>target</tt>. Contents that are not
+     * compressed are written straight from the buffers holding them, so the
+     * contents of a file that is not in memory are written from the mapped
+     * container without being copied into the heap. Compressed contents are
+     * decompressed as they are written.
+     * @return The number of bytes written
+     * @throws IOException
+     * @throws RuntimeException If the contents read from the container do not
+     *         match their checksum
+     */
+    long transferTo(WritableByteChannel target) throws IOException {
+        ByteBuffer[] buffers = null;
+        synchronized(this) {
+            if(data != null || source == null) {
+                buffers = data == null ? new ByteBuffer[0] : duplicate(data);
+            } else if(codec == Codec.NONE) {
+                buffers = duplicate(checkedSource());
+            }
+        }
+        if(buffers == null) {
+            try(InputStream in = openInputStream()) {
+                return in.transferTo(Channels.newOutputStream(target));
+            }
+        }
+        long written = 0;
+        for(ByteBuffer buffer : buffers) {
+            // Heap buffers are written in chunks, since each write copies them into a temporary direct buffer
+            int step = buffer.isDirect() ? Integer.MAX_VALUE : CHUNK_SIZE;
+            while(buffer.hasRemaining()) {
+                ByteBuffer part = buffer.slice(buffer.position(), Math.min(step, buffer.remaining()));
+                while(part.hasRemaining()) {
+                    written += target.write(part);
+                }
+                buffer.position(buffer.position() + part.limit());
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param append Whether to add to the end of the file's contents rather
+     *               than replacing them
+     * @return A stream that writes to the file. The file's contents are
+     * replaced when the stream is closed.
+     * @see FSFileChannel
+     */
+    public OutputStream openOutputStream(boolean append) {
+        return Channels.newOutputStream(new FSFileChannel(this, append, !append));
+    }
+
+    /**
+     * @return A channel for reading and writing the file's contents at any
+     * position. Changes made through the channel replace the file's contents
+     * when it is closed.
+     * @see FSFileChannel
+     */
+    public SeekableByteChannel openChannel() {
+        return new FSFileChannel(this, false, false);
+    }
+
     /**
      * Sets the file's contents to the given byte array.
      */
     public void write(byte[] data) {
-        this.data = data;
+        write(new ByteBuffer[] { ByteBuffer.wrap(data) }, null);
+    }
+
+    /**
+     * Adds the given bytes to the end of the file's contents. The existing
+     * contents are not copied if they are in memory, and the array is not
+     * copied either, so it must not be modified afterwards.
+     */
+    public void append(byte[] bytes) {
+        ByteBuffer[] current = load();
+        if(current == null || current.length == 0) {
+            write(bytes);
+            return;
+        }
+        ByteBuffer last = current[current.length - 1];
+        ByteBuffer[] data;
+        if(last.remaining() < MERGE_SIZE && last.remaining() + (long) bytes.length <= CHUNK_SIZE) {
+            data = current.clone();
+            data[data.length - 1] = ByteBuffer.allocate(last.remaining() + bytes.length).put(last.duplicate())
+                    .put(bytes).flip();
+        } else {
+            data = Arrays.copyOf(current, current.length + 1);
+            data[current.length] = ByteBuffer.wrap(bytes);
+        }
+        write(data, null);
+    }
+
+    /**
+     * Sets the file's contents to the given buffers, whose digest has already
+     * been computed if <tt>hash</tt> is not <tt>null</tt>. The buffers must not
+     * be modified afterwards. They may include read-only views of a mapped
+     * container, which are dropped once the contents have been saved.
+     * @see #remap(ByteBuffer[], byte, long, int, int)
+     */
+    void write(ByteBuffer[] data, byte[] hash) {
+        boolean mapped;
+        synchronized(this) {
+            mapped = source != null;
+            this.data = data;
+            this.source = null;
+            this.linked = false;
+            this.stored = false;
+            this.hash = hash;
+            this.hasChecksum = false;
+            revision++;
+        }
+        if(mapped && Main.fs != null) Main.fs.bufferPool.remove(this);
+        updateSize();
+        if(Main.fs != null) Main.fs.written(this);
+    }
+
+    /**
+     * Replaces the file's contents with the identical contents of <tt>other</tt>
+     * so that only one copy is kept in memory.
+     */
+    synchronized void share(FSFile other) {
+        this.data = other.data;
+    }
+
+    /**
+     * Sets the file's contents to a view of a memory-mapped container.
+     * The view is not read until {@link #getData()} is called.
+     */
+    void map(ByteBuffer source) {
+        map(new ByteBuffer[] { source }, Codec.NONE, source.remaining());
+    }
+
+    /**
+     * Sets the file's contents to a compressed view of a memory-mapped container.
+     * The view is not read or decompressed until {@link #getData()} is called.
+     * @param source The parts of the view, in order
+     * @param size The size of the decompressed contents
+     */
+    void map(ByteBuffer[] source, byte codec, long size) {
+        boolean mapped;
+        synchronized(this) {
+            mapped = this.source != null;
+            this.data = null;
+            this.hash = null;
+            this.hasChecksum = false;
+            this.verified = false;
+            this.source = source;
+            this.codec = codec;
+            this.sourceSize = size;
+            this.linked = false;
+            this.stored = false;
+            revision++;
+        }
+        if(mapped && Main.fs != null) Main.fs.bufferPool.remove(this);
+        updateSize();
+    }
+
+    /**
+     * Sets the file's contents to a view of a memory-mapped external file, whose
+     * digest has already been computed if <tt>hash</tt> is not <tt>null</tt>.
+     * Unlike {@link #map(ByteBuffer[], byte, long)}, this replaces the file's
+     * contents as {@link #write(ByteBuffer[], byte[])} does. The view is written
+     * to the container when it is saved, and is only read into memory if the
+     * contents are read or compressed before then. Once it has been saved, the
+     * file is remapped onto the container so that later changes to the external
+     * file do not affect it.
+     * @param source The parts of the view, in order
+     */
+    void link(ByteBuffer[] source, byte[] hash) {
+        map(source, Codec.NONE, Utils.remaining(source));
+        synchronized(this) {
+            this.linked = true;
+            this.hash = hash;
+        }
+        if(Main.fs != null) Main.fs.written(this);
+    }
+
+    /**
+     * Sets the location of the file's current contents in a memory-mapped
+     * container after they have been saved, so that their copy in memory can
+     * be discarded by the {@link BufferPool}. Nothing happens if the contents
+     * have been replaced since the save captured them.
+     * @param source The parts of the view, in order
+     * @param size The size of the decompressed contents
+     * @param checksum The checksum of the contents stored in the container
+     * @param revision The {@link #revision} of the contents that were saved
+     */
+    void remap(ByteBuffer[] source, byte codec, long size, int checksum, int revision) {
+        ByteBuffer[] data;
+        synchronized(this) {
+            if(revision != this.revision) return;
+            this.checksum = checksum;
+            this.hasChecksum = true;
+            this.verified = true;
+            this.source = source;
+            this.linked = false;
+            this.codec = codec;
+            this.sourceSize = size;
+            data = this.data;
+            // Views of the old container may refer to blocks that are about to be reused
+            if(data != null && !isHeap(data)) {
+                this.data = null;
+                data = null;
+            }
+        }
+        if(data != null && Main.fs != null) Main.fs.bufferPool.add(this, Utils.remaining(data));
+    }
+
+    /**
+     * Sets the checksum of the contents stored in the container.
+     */
+    synchronized void setChecksum(int checksum) {
+        this.checksum = checksum;
+        this.hasChecksum = true;
+    }
+
+    /**
+     * @return Whether the contents stored in the container match their checksum.
+     * Compressed contents without a checksum are checked by decompressing them,
+     * and other contents without a checksum are assumed to be intact, as are
+     * contents that are not stored in the container.
+     */
+    synchronized boolean verify() {
+        ByteBuffer[] source = this.source;
+        if(source == null) return true;
+        if(hasChecksum) return Utils.crc32c(source) == checksum;
+        if(codec == Codec.NONE) return true;
+        try {
+            Codec.decode(codec, Utils.concat(source), sourceSize);
+            return true;
+        } catch(RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@link #source}, after checking it against its checksum the first
+     * time it is read.
+     * @throws RuntimeException If the contents do not match their checksum
+     */
+    private ByteBuffer[] checkedSource() {
+        if(!verified && hasChecksum) {
+            if(Utils.crc32c(source) != checksum) throw new RuntimeException("Checksum mismatch: " + getPath());
+            verified = true;
+        }
+        return source;
+    }
+
+    /**
+     * Discards the file's contents from memory if they can be read from the
+     * container again.
+     * @return Whether the contents were discarded
+     */
+    synchronized boolean evict() {
+        if(source == null) return false;
+        data = null;
+        return true;
+    }
+
+    /**
+     * Records that the file's current contents are stored in the given blocks.
+     * @param codec The codec with which the stored contents are compressed
+     * @param storedSize The number of bytes the stored contents occupy
+     */
+    void setExtents(long[] extents, byte codec, long storedSize) {
+        this.extents = extents;
+        this.codec = codec;
+        this.storedSize = storedSize;
+        this.stored = true;
+    }
+
+    /**
+     * Discards the file's contents if they have not been read into memory.
+     * This is called when the part of the container they are read from is
+     * about to be reused.
+     */
+    void unmap() {
+        boolean mapped;
+        synchronized(this) {
+            mapped = source != null;
+            source = null;
+            linked = false;
+        }
+        if(mapped && Main.fs != null) Main.fs.bufferPool.remove(this);
+        updateSize();
+    }
+
+    /**
+     * @return Whether the file's contents are in memory.
+     */
+    public boolean isLoaded() {
+        return data != null || source == null;
+    }
+
+    /**
+     * @return Buffers containing the file's contents, in order, without loading
+     * them into memory, or <tt>null</tt> if the file has never been written to.
+     * Compressed contents are decompressed into a new buffer which is not retained.
+     */
+    synchronized ByteBuffer[] getBuffers() {
+        if(data != null) return duplicate(data);
+        if(source == null) return null;
+        if(codec == Codec.NONE) return duplicate(checkedSource());
+        return new ByteBuffer[] { ByteBuffer.wrap(Codec.decode(codec, Utils.concat(checkedSource()), sourceSize)) };
+    }
+
+    /**
+     * @return Whether the file's contents are a view of an external file that
+     * has not been saved to the container yet.
+     * @see #link(ByteBuffer[], byte[])
+     */
+    synchronized boolean isLinked() {
+        return linked;
+    }
+
+    /**
+     * @return The file's contents as they are stored in the container, if they
+     * have not changed since they were read or saved, otherwise <tt>null</tt>.
+     * Contents linked to an external file are not stored in the container.
+     * @see #getCodec()
+     */
+    synchronized ByteBuffer[] getStored() {
+        return source == null || linked ? null : duplicate(source);
+    }
+
+    private static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for(int i = 0; i < buffers.length; i++) {
+            duplicates[i] = buffers[i].duplicate();
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return The codec with which the contents returned by {@link #getStored()},
+     * or the contents stored in {@link #extents}, are compressed.
+     */
+    synchronized byte getCodec() {
+        return codec;
     }
 
     /**
@@ -25,27 +575,44 @@ public class FSFile extends FileSystemObject {
      * <br>
      * After this method is called, the file will not be saved when
      * {@link FileSystem#writeContainer()} is called and its contents are nullified.
+     * The array holding the contents is released rather than overwritten, since
+     * a pending save may still need to read it.
      */
     public void delete() {
         parent.children.remove(this);
-        Arrays.fill(data, (byte) 0);
+        unmap();
+        data = null;
+        updateSize();
     }
 
     /**
-     * @return The size of the file's content.
+     * Brings the totals of the directories above the file up to date after
+     * its size may have changed, which takes O(depth) time.
+     * @see FSDirectory#getSize()
      */
-    @Override
-    public int getSize() {
-        return data == null ? 0 : data.length;
+    private void updateSize() {
+        long size = getSize();
+        long delta = size - countedSize;
+        if(delta == 0) return;
+        countedSize = size;
+        updateAncestors(delta, 0);
     }
 
     /**
-     * @return The actual size of this file on the disk. 4 is added to the return
-     * value of {@link #getSize()} to account for the integer representing the
-     * file's size within the file system container's data section.
-     * @see FileSystem#getFullBytes()
+     * @return The size of the file that is included in the totals of the
+     *         directories above it.
      */
-    public int getTotalSize() {
-        return getSize() + 4;
+    long getCountedSize() {
+        return countedSize;
+    }
+
+    /**
+     * @return The size of the file's content.
+     */
+    @Override
+    public long getSize() {
+        ByteBuffer[] data = this.data;
+        if(data != null) return Utils.remaining(data);
+        return source == null ? 0 : sourceSize;
     }
 }
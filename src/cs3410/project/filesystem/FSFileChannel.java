@@ -0,0 +1,228 @@
+package cs3410.project.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A channel for reading and writing the contents of an {@link FSFile} at
+ * arbitrary positions.
+ * <br>
+ * The channel holds the contents the file had when it was opened as a list of
+ * chunks, none larger than {@link FSFile#CHUNK_SIZE}, which are views of the
+ * file's contents. The contents of a file are never modified in place, since a
+ * save running in the background may still be reading them, so a chunk is
+ * copied the first time it is written to, and only the chunks that are written
+ * to are copied. Writes past the end of the file add new chunks. When the
+ * channel is closed, its chunks replace the contents of the file, so changes
+ * made through the channel are not visible to other readers until then.
+ *
+ * @see FSFile#openChannel()
+ */
+class FSFileChannel implements SeekableByteChannel {
+    private final FSFile file;
+    private final boolean append;
+    /**
+     * The chunks of the channel's contents, each positioned at 0 and limited to
+     * its length. Chunks that have been copied have a capacity of
+     * {@link FSFile#CHUNK_SIZE} and are zero past their limit.
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    /**
+     * The position of the start of each chunk within the contents.
+     */
+    private final List<Long> starts = new ArrayList<>();
+    /**
+     * The indices of the chunks that have been copied and may be written to.
+     */
+    private final BitSet owned = new BitSet();
+    private long size = 0, position = 0;
+    private boolean open = true, modified = false;
+
+    /**
+     * @param append Whether every write should happen at the end of the file,
+     *               regardless of the position of the channel
+     * @param truncate Whether to discard the file's contents, in which case they
+     *                 are not read at all
+     */
+    FSFileChannel(FSFile file, boolean append, boolean truncate) {
+        this.file = file;
+        this.append = append;
+        this.modified = truncate;
+        ByteBuffer[] buffers = truncate ? null : file.getBuffers();
+        if(buffers == null) return;
+        for(ByteBuffer buffer : buffers) {
+            for(int offset = 0; offset < buffer.remaining(); offset += FSFile.CHUNK_SIZE) {
+                int length = Math.min(FSFile.CHUNK_SIZE, buffer.remaining() - offset);
+                starts.add(size);
+                chunks.add(buffer.slice(buffer.position() + offset, length));
+                size += length;
+            }
+        }
+    }
+
+    /**
+     * @return The index of the chunk containing the byte at <tt>position</tt>,
+     *         which must be less than {@link #size}.
+     */
+    private int indexOf(long position) {
+        int index = Collections.binarySearch(starts, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if(position >= size) return -1;
+        int n = 0;
+        while(dst.hasRemaining() && position < size) {
+            int index = indexOf(position);
+            ByteBuffer chunk = chunks.get(index);
+            int offset = (int) (position - starts.get(index));
+            int length = Math.min(dst.remaining(), chunk.limit() - offset);
+            dst.put(chunk.slice(offset, length));
+            position += length;
+            n += length;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if(append) position = size;
+        int n = src.remaining();
+        // Overwrites the chunks that already exist
+        while(src.hasRemaining() && position < size) {
+            int index = indexOf(position);
+            ByteBuffer chunk = own(index);
+            int offset = (int) (position - starts.get(index));
+            int length = Math.min(src.remaining(), chunk.limit() - offset);
+            chunk.duplicate().position(offset).put(src.slice(src.position(), length));
+            src.position(src.position() + length);
+            position += length;
+        }
+        // Extends the last chunk and adds new ones, leaving zeros in any gap before the position
+        while(src.hasRemaining()) {
+            ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if(last == null || last.limit() == FSFile.CHUNK_SIZE) {
+                starts.add(size);
+                chunks.add(ByteBuffer.allocate(FSFile.CHUNK_SIZE).limit(0));
+                owned.set(chunks.size() - 1);
+                continue;
+            }
+            last = own(chunks.size() - 1);
+            long end = position + src.remaining();
+            int length = (int) Math.min(FSFile.CHUNK_SIZE - last.limit(), end - size);
+            int gap = (int) Math.min(Math.max(position - size, 0), length);
+            last.limit(last.limit() + length);
+            if(length > gap) {
+                last.duplicate().position(last.limit() - length + gap).put(src.slice(src.position(), length - gap));
+                src.position(src.position() + length - gap);
+                position += length - gap;
+            }
+            size += length;
+        }
+        if(n > 0) modified = true;
+        return n;
+    }
+
+    /**
+     * @return The chunk at <tt>index</tt>, after replacing it with a copy that
+     *         may be written to if it is still a view of the file's contents.
+     */
+    private ByteBuffer own(int index) {
+        ByteBuffer chunk = chunks.get(index);
+        if(owned.get(index)) return chunk;
+        ByteBuffer copy = ByteBuffer.allocate(FSFile.CHUNK_SIZE);
+        copy.put(chunk.duplicate()).flip();
+        chunks.set(index, copy);
+        owned.set(index);
+        return copy;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if(newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+        if(size < 0) throw new IllegalArgumentException("Negative size: " + size);
+        if(size < this.size) {
+            int index = size == 0 ? 0 : indexOf(size - 1);
+            int length = size == 0 ? 0 : (int) (size - starts.get(index));
+            if(size > 0) {
+                ByteBuffer last = chunks.get(index);
+                if(owned.get(index)) {
+                    // Keeps the bytes past the end zeroed in case the file grows again
+                    last.duplicate().limit(last.capacity()).position(length).put(new byte[last.limit() - length]);
+                    last.limit(length);
+                } else {
+                    chunks.set(index, last.slice(0, length));
+                }
+                index++;
+            }
+            chunks.subList(index, chunks.size()).clear();
+            starts.subList(index, starts.size()).clear();
+            if(index < owned.length()) owned.clear(index, owned.length());
+            this.size = size;
+            modified = true;
+        }
+        position = Math.min(position, size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Replaces the contents of the file with the contents of the channel, if
+     * they have been changed. Copied chunks are trimmed to their length, and
+     * chunks that were never written to are kept as they are, so those that
+     * are still views of a mapped container are not read into memory.
+     */
+    @Override
+    public void close() {
+        if(!open) return;
+        open = false;
+        if(!modified) return;
+        ByteBuffer[] data = new ByteBuffer[chunks.size()];
+        for(int i = 0; i < data.length; i++) {
+            ByteBuffer chunk = chunks.get(i);
+            if(owned.get(i) && chunk.limit() < chunk.capacity()) {
+                chunk = ByteBuffer.allocate(chunk.limit()).put(chunk.duplicate()).flip();
+            }
+            data[i] = chunk;
+        }
+        chunks.clear();
+        file.write(data, null);
+    }
+
+    private void ensureOpen() throws IOException {
+        if(!open) throw new ClosedChannelException();
+    }
+}
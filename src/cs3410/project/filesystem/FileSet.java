@@ -2,14 +2,85 @@ package cs3410.project.filesystem;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
 
+/**
+ * The children of a directory, kept in order of their names and indexed by
+ * name. A FileSet holds at most one object with each name.
+ * <br>
+ * The objects are held in an array that grows by doubling, so they can be
+ * accessed by index in constant time, and looked up by name in constant time
+ * through a hash map. An object is inserted at the position found by a binary
+ * search, which only shifts the objects that follow it. Objects added or
+ * removed together are merged or compacted in a single pass instead.
+ * <br>
+ * Iterators traverse the objects the FileSet held when they were created, so
+ * the FileSet may be changed while it is being iterated over. The array is
+ * only copied if it is changed while an iterator may still be using it.
+ */
 public class FileSet implements Collection<FileSystemObject> {
     private FileSystemObject[] objects = new FileSystemObject[0];
+    private int size = 0;
+    private final Map<String, FileSystemObject> byName = new HashMap<>();
+    /**
+     * Whether an iterator may still be using {@link #objects}, in which case it
+     * is copied before it is changed.
+     */
+    private boolean shared = false;
+    /**
+     * The directory whose children are stored in this FileSet, or <tt>null</tt>
+     * if the FileSet is not part of a file system. Changes to the children of a
+     * directory are reported to {@link Main#fs}.
+     */
+    private final FSDirectory owner;
+
+    public FileSet(FSDirectory owner) {
+        this.owner = owner;
+    }
+
+    public FileSet() {
+        this(null);
+    }
+
+    private void added(FileSystemObject obj) {
+        if(owner != null && Main.fs != null) Main.fs.created(obj);
+    }
+
+    private void removed(FileSystemObject obj) {
+        if(owner != null && Main.fs != null) Main.fs.deleted(obj);
+    }
+
+    /**
+     * Adds the sizes and numbers of objects beneath <tt>objects</tt>, including
+     * themselves, to the totals of {@link #owner} and the directories above it.
+     * @param sign 1 if the objects were added, -1 if they were removed
+     */
+    private void count(FileSystemObject[] objects, int count, int sign) {
+        if(owner == null) return;
+        long bytes = 0, total = 0;
+        for(int i = 0; i < count; i++) {
+            FileSystemObject obj = objects[i];
+            if(obj.isDirectory()) {
+                bytes += obj.getSize();
+                total += ((FSDirectory) obj).getDescendantCount() + 1;
+            } else {
+                bytes += ((FSFile) obj).getCountedSize();
+                total++;
+            }
+        }
+        owner.updateTotals(sign * bytes, sign * total);
+    }
 
     @Override
     public int size() {
-        return objects.length;
+        return size;
     }
 
     @Override
@@ -19,88 +90,143 @@ public class FileSet implements Collection<FileSystemObject> {
 
     @Override
     public boolean contains(Object o) {
-        for(int i = 0; i < size(); i++) {
-            if(o.equals(objects[i])) return true;
-        }
-        return false;
+        return o instanceof FileSystemObject && byName.get(((FileSystemObject) o).name) == o;
+    }
+
+    /**
+     * @return The object with the given name, or <tt>null</tt> if there is none.
+     */
+    public FileSystemObject get(String name) {
+        return byName.get(name);
     }
 
     @Override
     public Iterator<FileSystemObject> iterator() {
-        return Arrays.stream(objects).iterator();
+        FileSystemObject[] objects = this.objects;
+        int size = this.size;
+        shared = true;
+        return new Iterator<FileSystemObject>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public FileSystemObject next() {
+                if(index >= size) throw new NoSuchElementException();
+                return objects[index++];
+            }
+        };
+    }
+
+    /**
+     * @return The array holding the objects in its first {@link #size()}
+     *         elements, which will not be changed afterwards, in the same way
+     *         as an iterator's. The array must not be modified.
+     */
+    FileSystemObject[] snapshot() {
+        shared = true;
+        return objects;
     }
 
     public FileSystemObject get(int index) {
+        if(index >= size) throw new ArrayIndexOutOfBoundsException(index);
         return objects[index];
     }
 
+    /**
+     * @return The index of <tt>obj</tt>, or -1 if it is not in the FileSet.
+     */
+    public int indexOf(FileSystemObject obj) {
+        if(!contains(obj)) return -1;
+        return search(obj.name, null, null);
+    }
+
     @Override
     public Object[] toArray() {
-        return objects;
+        return Arrays.copyOf(objects, size);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public <T> T[] toArray(T[] a) {
-        return (T[]) objects;
+        if(a.length < size) return (T[]) Arrays.copyOf(objects, size, a.getClass());
+        System.arraycopy(objects, 0, a, 0, size);
+        if(a.length > size) a[size] = null;
+        return a;
     }
 
     @Override
     public boolean add(FileSystemObject e) {
-        if(e == null || contains(e)) return false;
-        fit(1);
-        objects[size() - 1] = e;
-        sort();
+        if(e == null || byName.containsKey(e.name)) return false;
+        int index = -search(e.name, null, null) - 1;
+        prepareWrite(size + 1);
+        System.arraycopy(objects, index, objects, index + 1, size - index);
+        objects[index] = e;
+        size++;
+        byName.put(e.name, e);
+        count(new FileSystemObject[] { e }, 1, 1);
+        added(e);
         return true;
     }
 
     @Override
     public boolean addAll(Collection<? extends FileSystemObject> c) {
-        if(c.size() == 0) return false;
-        fit(count(c.toArray()));
-        int i = 0;
-        for(FileSystemObject obj : c) {
-            if(contains(obj)) continue;
-            objects[size() - 1 - c.size() + i] = obj;
-            i++;
-        }
-        sort();
-        return true;
+        return addBatch(c) > 0;
     }
 
     /**
-     * @return The size of the given array, ignoring objects already in the FileSet.
+     * Adds every object in <tt>c</tt> whose name is not already taken, in
+     * O(n + m log m) time for <tt>m</tt> objects. The objects are sorted among
+     * themselves and then merged with the existing ones in a single pass.
+     * @return The number of objects that were added
      */
-    private int count(Object... objs) {
-        if(objs.length == 0) return 0;
+    int addBatch(Collection<? extends FileSystemObject> c) {
+        FileSystemObject[] batch = new FileSystemObject[c.size()];
         int count = 0;
-        for(Object obj : objs) {
-            if(!contains(obj)) count++;
+        for(FileSystemObject obj : c) {
+            if(obj == null || byName.containsKey(obj.name)) continue;
+            byName.put(obj.name, obj);
+            batch[count++] = obj;
         }
-        return count;
-    }
-
-    /**
-     * Resizes the {@link #objects} array to fit an additional <tt>count</tt> elements.
-     */
-    private void fit(int count) {
-        if(objects.length < size() + count) {
-            FileSystemObject[] temp = new FileSystemObject[objects.length + count];
-            System.arraycopy(objects, 0, temp, 0, size());
-            objects = temp;
+        if(count == 0) return 0;
+        FileSystemObject[] sorted = Arrays.copyOf(batch, count);
+        Arrays.sort(sorted);
+        prepareWrite(size + count);
+        // Merges from the end, so that no object is overwritten before it is moved
+        int i = size - 1, j = count - 1;
+        for(int k = size + count - 1; j >= 0; k--) {
+            if(i >= 0 && objects[i].compareTo(sorted[j]) > 0) {
+                objects[k] = objects[i--];
+            } else {
+                objects[k] = sorted[j--];
+            }
         }
+        size += count;
+        count(batch, count, 1);
+        for(int k = 0; k < count; k++) {
+            added(batch[k]);
+        }
+        return count;
     }
 
     @Override
     public boolean remove(Object o) {
-        for(int i = 0; i < size(); i++) {
-            if(objects[i].equals(o)) {
-                objects[i] = null;
-                sort();
-                return true;
-            }
-        }
-        return false;
+        if(!contains(o)) return false;
+        removeAt(search(((FileSystemObject) o).name, null, null));
+        return true;
+    }
+
+    private void removeAt(int index) {
+        FileSystemObject obj = objects[index];
+        prepareWrite(size);
+        System.arraycopy(objects, index + 1, objects, index, size - index - 1);
+        objects[--size] = null;
+        byName.remove(obj.name);
+        count(new FileSystemObject[] { obj }, 1, -1);
+        removed(obj);
     }
 
     @Override
@@ -113,112 +239,145 @@ public class FileSet implements Collection<FileSystemObject> {
 
     @Override
     public boolean removeAll(Collection<?> c) {
-        if(c.size() == 0) return false;
-        boolean changed = false;
+        return removeBatch(c) > 0;
+    }
+
+    /**
+     * Removes every object in <tt>c</tt> that is in the FileSet, in O(n + m)
+     * time for <tt>m</tt> objects. Membership is checked through the index,
+     * and the remaining objects are compacted in a single pass.
+     * @return The number of objects that were removed
+     */
+    int removeBatch(Collection<?> c) {
+        Set<FileSystemObject> toRemove = Collections.newSetFromMap(new IdentityHashMap<>());
         for(Object o : c) {
-            for(int i = 0; i < size(); i++) {
-                if(o.equals(objects[i])) {
-                    objects[i] = null;
-                    changed = true;
-                }
-            }
+            if(contains(o)) toRemove.add((FileSystemObject) o);
+        }
+        if(toRemove.isEmpty()) return 0;
+        if(toRemove.size() == 1) {
+            remove(toRemove.iterator().next());
+            return 1;
         }
-        if(changed) sort();
-        return changed;
+        return retain(obj -> !toRemove.contains(obj));
     }
 
     @Override
     public boolean retainAll(Collection<?> c) {
-        if(c.size() == 0) {
-            clear();
-            return true;
-        }
-        FileSystemObject[] temp = new FileSystemObject[size()];
-        int i = 0;
-        for(Object o : c) {
-            for(int j = 0; j < size(); j++) {
-                if(objects[j].equals(o)) {
-                    temp[i] = objects[j];
-                    i++;
-                }
+        Set<Object> toRetain = Collections.newSetFromMap(new IdentityHashMap<>());
+        toRetain.addAll(c);
+        return retain(toRetain::contains) > 0;
+    }
+
+    /**
+     * Removes the objects that do not match <tt>filter</tt> in a single pass.
+     * @return The number of objects that were removed
+     */
+    private int retain(Predicate<FileSystemObject> filter) {
+        prepareWrite(size);
+        FileSystemObject[] removed = new FileSystemObject[size];
+        int kept = 0, count = 0;
+        for(int i = 0; i < size; i++) {
+            FileSystemObject obj = objects[i];
+            if(filter.test(obj)) {
+                objects[kept++] = obj;
+            } else {
+                byName.remove(obj.name);
+                removed[count++] = obj;
             }
         }
-        if(i > 0) {
-            objects = temp;
-            sort();
-            return true;
-        } else {
-            return false;
+        Arrays.fill(objects, kept, size, null);
+        size = kept;
+        count(removed, count, -1);
+        for(int i = 0; i < count; i++) {
+            removed(removed[i]);
         }
+        return count;
     }
 
     @Override
     public void clear() {
+        FileSystemObject[] removed = Arrays.copyOf(objects, size);
         objects = new FileSystemObject[0];
+        size = 0;
+        shared = false;
+        byName.clear();
+        count(removed, removed.length, -1);
+        for(FileSystemObject obj : removed) {
+            removed(obj);
+        }
     }
 
     /**
-     * Sorts the {@link #objects} array using merge sort.
-     * @see #sort()
-     * @see #merge(FileSystemObject[], int, int, int)
+     * Restores the order of the objects, their index and their cached paths
+     * after the names of any of them have been changed directly.
+     * @see #renamed(FileSystemObject, String)
      */
     public void sort() {
-        FileSystemObject[] temp = new FileSystemObject[objects.length];
-        int i = 0;
-        for(int j = 0; j < objects.length; j++) {
-            if(objects[j] != null) {
-                temp[i] = objects[j];
-                i++;
-            }
+        prepareWrite(size);
+        Arrays.sort(objects, 0, size);
+        byName.clear();
+        for(int i = 0; i < size; i++) {
+            byName.put(objects[i].name, objects[i]);
+            objects[i].invalidatePath();
         }
-        objects = new FileSystemObject[i];
-        System.arraycopy(temp, 0, objects, 0, i);
-        sort(objects, 0, size() - 1);
     }
 
-    private static void sort(FileSystemObject[] array, int left, int right) {
-        if(array.length == 0 || left == right) {
-            return;
-        }
-        int mid = (left + right) / 2;
-        sort(array, left, mid);
-        sort(array, mid + 1, right);
-        merge(array, left, mid, right);
-    }
-
-    private static void merge(FileSystemObject[] array, int left, int mid, int right) {
-        int size = right - left + 1;
-        FileSystemObject[] temp = new FileSystemObject[size];
-        int i = left;
-        int j = mid + 1;
-        int k = 0;
-
-        while(i <= mid && j <= right) {
-            if(array[i].name.compareTo(array[j].name) < 0) {
-                temp[k] = array[i];
-                i++;
+    /**
+     * Moves an object whose name has changed from <tt>oldName</tt> to the
+     * position of its new name. No other object may have the new name.
+     * @throws RuntimeException If another object already has the new name
+     */
+    void renamed(FileSystemObject obj, String oldName) {
+        if(byName.get(oldName) != obj) return;
+        FileSystemObject other = byName.get(obj.name);
+        if(other != null && other != obj) throw new RuntimeException("Name already taken: " + obj.name);
+        int from = search(oldName, obj, oldName);
+        byName.remove(oldName);
+        byName.put(obj.name, obj);
+        prepareWrite(size);
+        System.arraycopy(objects, from + 1, objects, from, size - from - 1);
+        size--;
+        int to = -search(obj.name, null, null) - 1;
+        System.arraycopy(objects, to, objects, to + 1, size - to);
+        objects[to] = obj;
+        size++;
+    }
+
+    /**
+     * Finds a name among the objects by binary search.
+     * @param renamed An object to treat as having the name <tt>oldName</tt>,
+     *                or <tt>null</tt>
+     * @return The index of the object with the given name, or
+     *         <tt>-(insertion point) - 1</tt> if there is none.
+     */
+    private int search(String name, FileSystemObject renamed, String oldName) {
+        int low = 0, high = size - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            String midName = objects[mid] == renamed ? oldName : objects[mid].name;
+            int cmp = midName.compareTo(name);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
             } else {
-                temp[k] = array[j];
-                j++;
+                return mid;
             }
-            k++;
-        }
-
-        while(i <= mid) {
-            temp[k] = array[i];
-            i++;
-            k++;
-        }
-
-        while(j <= right) {
-            temp[k] = array[j];
-            j++;
-            k++;
         }
+        return -(low + 1);
+    }
 
-        for(k = 0; k < size; k++) {
-            array[left + k] = temp[k];
+    /**
+     * Makes sure {@link #objects} can hold <tt>capacity</tt> objects and is not
+     * being used by an iterator, doubling its length or copying it if needed.
+     */
+    private void prepareWrite(int capacity) {
+        if(objects.length < capacity) {
+            objects = Arrays.copyOf(objects, Math.max(capacity, Math.max(objects.length * 2, 4)));
+        } else if(shared) {
+            objects = objects.clone();
         }
+        shared = false;
     }
 
     @Override
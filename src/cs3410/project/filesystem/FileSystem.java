@@ -1,41 +1,233 @@
 package cs3410.project.filesystem;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import cs3410.project.filesystem.gui.BrowserFrame;
 
 public class FileSystem {
+    /**
+     * The first bytes of every versioned container.
+     */
+    static final byte[] MAGIC = { (byte) 0x89, 0x46, 0x53, 0x43 };
+    /**
+     * The version of the container format written by this class.
+     * @see #getEntries()
+     */
+    public static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 28;
+    /**
+     * The amount of file data that may be buffered before it is written when
+     * the container is saved.
+     */
+    private static final long WRITE_BATCH_SIZE = 16 * 1024 * 1024;
+    /**
+     * External files at least this large are mapped into memory rather than
+     * read when they are imported.
+     */
+    static final long IMPORT_MAP_SIZE = 16 * 1024 * 1024;
     public final FSDirectory root = new FSDirectory(null, "");
     /**
      * This file stores the contents of the files contained within the file system
      */
     public File container;
-    private byte[] lastIOHash;
+    /**
+     * The format version of the container as it is on the disk, or 0 if it
+     * has not been read or written yet.
+     */
+    public int version = 0;
+    /**
+     * The objects that have been created, written, renamed, or deleted since the
+     * container was last read or written, along with the directories whose
+     * children have changed.
+     */
+    private final Set<FileSystemObject> dirty = new LinkedHashSet<>();
+    /**
+     * If true, {@link #writeContainer()} appends the changes made since the last
+     * save to the end of the container rather than rewriting it.
+     * @see Journal
+     */
+    public boolean journaling = false;
+    /**
+     * Set when a change is made while {@link #journaling} is disabled, in which
+     * case the {@link #journal} does not hold every change since the last save
+     * and the next save rewrites the container instead of appending to it.
+     */
+    private boolean unrecorded = false;
+    /**
+     * The size, in bytes, that the journal may grow to before it is folded into
+     * a new base image by a background thread.
+     */
+    public long compactionThreshold = 16 * 1024 * 1024;
+    /**
+     * If true, the container is stored in fixed-size blocks so that changed files
+     * can be rewritten without moving unrelated data. This is enabled automatically
+     * when a block-based container is read. Journaling does not apply to
+     * block-based containers.
+     * @see BlockLayout
+     */
+    public boolean blockLayout = false;
+    /**
+     * If true, the contents of files are compressed when they are written to the
+     * container, unless their type is already compressed or compression would
+     * not make them meaningfully smaller.
+     * @see Codec#encode(String, ByteBuffer)
+     */
+    public boolean compression = true;
+    /**
+     * If true, files with identical contents share a single copy in memory and
+     * in the container.
+     * @see #getEntries()
+     */
+    public boolean deduplication = true;
+    /**
+     * Maps the digest of a file's contents to a file with those contents. The
+     * digests are wrapped in buffers so that they are compared by value. Entries
+     * may refer to files that have since been deleted or written to, so they are
+     * checked before they are used, and the index is rebuilt whenever the
+     * container is written.
+     */
+    private final Map<ByteBuffer, FSFile> contentIndex = new HashMap<>();
+    /**
+     * Holds the contents of files that have been read from the container. Its
+     * capacity defaults to a quarter of the maximum heap size.
+     */
+    public final BufferPool bufferPool = new BufferPool(Runtime.getRuntime().maxMemory() / 4);
+    /**
+     * Remembers the objects at recently resolved absolute paths.
+     * @see #getObject(String)
+     */
+    public final PathCache pathCache = new PathCache(4096);
+    /**
+     * The number of threads used to read the contents of files when the
+     * container is not read lazily.
+     * @see #readContainer(boolean)
+     */
+    public int loadParallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * The number of threads used to read and write external files when a
+     * directory is imported or exported. Since these threads mostly wait for
+     * the disk, there are at least four of them.
+     * @see #importDirectory(File, String)
+     * @see #exportDirectory(FSDirectory, File, boolean)
+     */
+    public int transferParallelism = Math.max(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * The layout of the container on the disk, if it is block-based.
+     */
+    private BlockLayout blocks;
+    private final Journal journal = new Journal();
+    /**
+     * The positions within the container at which the journal starts and ends,
+     * or 0 if the container has not been read or written yet.
+     * <br>
+     * These fields, along with {@link #version} and {@link #blocks}, are only
+     * accessed by the thread that modifies the file system. A save running in
+     * the background returns the size of the image it wrote through
+     * {@link #pendingSave}, and the fields are updated once it is awaited.
+     */
+    private long baseEnd, journalEnd;
+    /**
+     * The save or compaction running on a background thread, if any. Its result
+     * is the size of the image it wrote, or <tt>null</tt> if a compaction failed.
+     * @see #writeContainerInBackground()
+     * @see #awaitSave()
+     */
+    private Future<Long> pendingSave;
+    /**
+     * The objects whose changes are being written by {@link #pendingSave}, so
+     * that they can be marked as dirty again if it fails.
+     */
+    private Set<FileSystemObject> saving;
+    private ScheduledExecutorService autosave;
+    /**
+     * Set while the container is being read so that the objects it creates are
+     * not recorded in the journal.
+     */
+    private boolean loading = false;
 
     public FileSystem(File container) {
         this.container = container;
     }
 
     /**
-     * Performs an action on all of the descendants of <tt>root</tt>.
+     * Performs an action on all of the descendants of <tt>root</tt>, starting
+     * with <tt>root</tt> itself. Each directory is followed by its children,
+     * in order of their names. Trees of any depth can be traversed.
+     * @see #walk(FSDirectory)
      */
     public void traverse(FSDirectory root, FSAction action) {
-        action.run(root);
-        for(FileSystemObject obj : root.children) {
-            if(obj.isDirectory()) {
-                traverse((FSDirectory) obj, action);
-            } else {
-                action.run(obj);
-            }
-        }
+        new TreeSpliterator(root, Integer.MAX_VALUE, obj -> true).forEachRemaining(action::run);
+    }
+
+    /**
+     * @return A stream of <tt>root</tt> and all of its descendants, in the same
+     *         order as {@link #traverse(FSDirectory, FSAction)}. The stream can
+     *         be made parallel, in which case it is split between subtrees, and
+     *         stops visiting objects as soon as a short-circuiting operation such
+     *         as <tt>findFirst</tt> or <tt>anyMatch</tt> is satisfied.
+     */
+    public Stream<FileSystemObject> walk(FSDirectory root) {
+        return walk(root, Integer.MAX_VALUE, obj -> true);
+    }
+
+    /**
+     * @param maxDepth The number of levels beneath <tt>root</tt> to visit,
+     *                 where 0 only visits <tt>root</tt> and 1 also visits its
+     *                 children
+     * @param descend  Whether the children of a directory should be visited.
+     *                 The directory itself is included either way.
+     * @return A stream of <tt>root</tt> and those of its descendants that are
+     *         no deeper than <tt>maxDepth</tt> and not beneath a directory
+     *         rejected by <tt>descend</tt>.
+     * @see #walk(FSDirectory)
+     */
+    public Stream<FileSystemObject> walk(FSDirectory root, int maxDepth, Predicate<? super FileSystemObject> descend) {
+        if(maxDepth < 0) throw new IllegalArgumentException("Negative depth: " + maxDepth);
+        return StreamSupport.stream(new TreeSpliterator(root, maxDepth, descend), false);
     }
 
     /**
@@ -46,9 +238,8 @@ public class FileSystem {
     public FSFile newFile(FSDirectory parent, String name) {
         if(name.isEmpty()) return null;
         if(exists(parent, name)) return null;
-        FSFile file = new FSFile(name);
+        FSFile file = new FSFile(parent, name);
         parent.children.add(file);
-        file.parent = parent;
         return file;
     }
 
@@ -60,9 +251,8 @@ public class FileSystem {
     public FSDirectory newDirectory(FSDirectory parent, String name) {
         if(name.isEmpty()) return null;
         if(exists(parent, name)) return null;
-        FSDirectory dir = new FSDirectory(name);
+        FSDirectory dir = new FSDirectory(parent, name);
         parent.children.add(dir);
-        dir.parent = parent;
         return dir;
     }
 
@@ -108,170 +298,815 @@ public class FileSystem {
      * @return If <tt>parent</tt> has a child with the given name
      */
     public boolean exists(FSDirectory parent, String name) {
-        return exists(parent.getPath() + "/" + name);
+        return parent.getChild(name) != null;
     }
 
     /**
      * Writes the file system to the container file on the disk.
-     * See {@link #getFullBytes()} for the format of the container.
+     * See {@link #getEntries()} for the format of the container.
+     * <br>
+     * The container is never assembled in memory. Instead, the contents of each
+     * file are compressed and streamed to the container in batches using gathering
+     * writes, followed by the file table and the header, so the only additional
+     * memory required is roughly the size of the file table and one batch.
      * <br>
      * Before writing the container to the disk, the method checks
-     * whether the file system has changed since the last time an
-     * I/O operation took place. If not, the method does nothing.
-     * If the file system has changed, it writes the container to
-     * the disk and recalculates the hash of the file system's
-     * contents.
+     * whether any objects have been marked as dirty since the last
+     * time an I/O operation took place. If not, the method does nothing.
+     * <br>
+     * Files that have not been loaded yet are still backed by the old container,
+     * so the new container is written to a temporary file which then replaces
+     * the old one. Such files are copied in their stored form without being
+     * decompressed.
+     * <br>
+     * If {@link #journaling} is enabled and the container has already been
+     * written, only the changes recorded since the last save are appended to
+     * the container. See {@link Journal} for the format of the journal.
      * 
      * @see #readContainer()
-     * @see #hasChangedSinceLastIO(byte[])
-     * @see #getFullBytes()
+     * @see #hasChangedSinceLastIO()
+     * @see #getEntries()
      * @throws IOException
      */
     public void writeContainer() throws IOException {
-        byte[] data = getFullBytes();
-        if(!hasChangedSinceLastIO(data)) return;
-        Files.write(container.toPath(), data);
+        awaitSave();
+        if(!hasChangedSinceLastIO()) return;
+        // Older containers are upgraded before any records are appended to them
+        if(blockLayout) {
+            writeBlocks(blocks == null || baseEnd == 0 || version != FORMAT_VERSION);
+        } else if(canAppend()) {
+            appendJournal();
+        } else {
+            imageWritten(writeImage(getEntries(), true));
+            clearJournal();
+        }
+        clearDirty();
+    }
+
+    /**
+     * Writes the file system to the container on a background thread, so that
+     * the calling thread can keep modifying the file system while the contents
+     * of its files are compressed and written.
+     * <br>
+     * A snapshot of the file system is captured before this method returns.
+     * Capturing it only builds the file table: each entry refers to the
+     * contents its file had at the time, and since the contents of a file are
+     * replaced rather than modified in place, later writes do not affect the
+     * snapshot. The captured objects are no longer dirty once the snapshot has
+     * been taken, and they are marked as dirty again if the save fails. Like
+     * {@link #writeContainer()}, the new container is written to a temporary
+     * file which then replaces the old one.
+     * <br>
+     * Appending to the journal and saving a block-based container only write
+     * what has changed, and they update the layout of the container in place,
+     * so they are still performed on the calling thread.
+     * 
+     * @return The save, which is done once the container has been replaced
+     * @see #awaitSave()
+     * @throws IOException If the previous background save failed
+     */
+    public Future<?> writeContainerInBackground() throws IOException {
+        awaitSave();
+        if(!hasChangedSinceLastIO() || blockLayout || canAppend()) {
+            writeContainer();
+            return CompletableFuture.completedFuture(null);
+        }
+        List<FileTableEntry> snapshot = getEntries();
+        clearJournal();
+        saving = new LinkedHashSet<>(dirty);
+        clearDirty();
+        FutureTask<Long> save = new FutureTask<>(() -> writeImage(snapshot, true));
+        new Thread(save, "Container saver").start();
+        pendingSave = save;
+        return save;
+    }
+
+    /**
+     * Saves the file system in the background every <tt>interval</tt> seconds
+     * until {@link #stopAutosave()} is called. A save is skipped if the
+     * previous one is still running.
+     * @param executor Runs each save on the thread that modifies the file
+     *                 system, such as <tt>EventQueue::invokeLater</tt> in a GUI,
+     *                 so that no modifications are made while the snapshot is
+     *                 being captured
+     * @see #writeContainerInBackground()
+     */
+    public void startAutosave(long interval, Executor executor) {
+        stopAutosave();
+        autosave = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Container autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        autosave.scheduleWithFixedDelay(() -> executor.execute(() -> {
+            if(pendingSave != null && !pendingSave.isDone()) return;
+            try {
+                writeContainerInBackground();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops saving the file system periodically. A save that is already running
+     * is not interrupted.
+     */
+    public void stopAutosave() {
+        if(autosave == null) return;
+        autosave.shutdownNow();
+        autosave = null;
+    }
+
+    /**
+     * Replaces the container with a new base image holding the given entries.
+     * This may run on a background thread, so it does not update the layout
+     * of the container recorded by the file system. The caller passes the
+     * result to {@link #imageWritten(long)} instead.
+     * @param remap Whether the files the entries were captured from are unchanged,
+     *              so that their contents can be read from the new image
+     * @return The size of the new container
+     * @see #getEntries()
+     * @throws IOException
+     */
+    private long writeImage(List<FileTableEntry> entries, boolean remap) throws IOException {
+        int flags = FileTableEntry.FLAG_CODECS | FileTableEntry.FLAG_PARENTS | FileTableEntry.FLAG_CHECKSUMS;
+        int headerSize = HEADER_SIZE + 4;
+        long mftSize = 0;
+        for(FileTableEntry entry : entries) {
+            mftSize += entry.encodedSize(flags);
+        }
+        if(mftSize > Integer.MAX_VALUE) throw new IOException("File table too large: " + mftSize);
+        Path target = container.getAbsoluteFile().toPath();
+        Path temp = Files.createTempFile(target.getParent(), container.getName(), ".tmp");
         try {
-            lastIOHash = MessageDigest.getInstance("SHA-1").digest(data);
-        } catch(NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            long size;
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // The offsets in the file table are only known once the data has been compressed
+                channel.position(headerSize + mftSize);
+                long dataSize = writeData(channel, entries);
+                ByteBuffer mft = ByteBuffer.allocate((int) mftSize);
+                for(FileTableEntry entry : entries) {
+                    entry.write(mft, flags);
+                }
+                mft.flip();
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                header.put(MAGIC);
+                header.putInt(FORMAT_VERSION);
+                header.putInt(flags);
+                header.putLong(mftSize);
+                header.putLong(dataSize);
+                header.putInt(Utils.crc32c(header.duplicate().flip(), mft));
+                header.flip();
+                channel.position(0);
+                Utils.writeFully(channel, new ByteBuffer[] { header, mft });
+                channel.force(false);
+                size = channel.size();
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if(remap) remap(entries, headerSize + mftSize, size - headerSize - mftSize);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Records that the container has been replaced by a base image of the
+     * given size, with an empty journal.
+     * @see #writeImage(List, boolean)
+     */
+    private void imageWritten(long size) {
+        baseEnd = journalEnd = size;
+        version = FORMAT_VERSION;
+        blocks = null;
+    }
+
+    /**
+     * Points the contents of the files the entries were captured from at their
+     * location in the container that has just been written, so that the
+     * {@link #bufferPool} can discard them from memory.
+     * @param dataStart The position of the data section within the container
+     * @throws IOException
+     */
+    private void remap(List<FileTableEntry> entries, long dataStart, long dataSize) throws IOException {
+        try(FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ)) {
+            ContainerMapping data = new ContainerMapping(channel, dataStart, dataSize);
+            for(FileTableEntry entry : entries) {
+                if(entry.file == null || entry.storedSize == 0) continue;
+                entry.file.remap(data.slices(entry.offset, entry.storedSize), entry.codec, entry.size, entry.checksum,
+                        entry.revision);
+            }
         }
     }
 
     /**
-     * The container file consists of two sections: the file table and the data.
-     * The first four bytes of the file store the size of the file table, in bytes,
-     * while the next four bytes store the size of the data section.
+     * Compresses the contents of each entry and writes them back-to-back at the
+     * current position of <tt>channel</tt>, recording their offsets in the entries.
+     * Entries with the same digest share the data of the first one.
+     * The contents are written in batches, so only a limited amount of compressed
+     * data is held in memory at once.
+     * @return The size of the data section
+     * @throws IOException
+     */
+    private long writeData(FileChannel channel, List<FileTableEntry> entries) throws IOException {
+        List<ByteBuffer> batch = new ArrayList<>();
+        Map<ByteBuffer, FileTableEntry> written = new HashMap<>();
+        long offset = 0, batchSize = 0;
+        for(FileTableEntry entry : entries) {
+            if(entry.isDirectory()) continue;
+            if(entry.hash != null) {
+                FileTableEntry original = written.putIfAbsent(ByteBuffer.wrap(entry.hash), entry);
+                if(original != null) {
+                    // Points the entry at the data that has already been written
+                    entry.offset = original.offset;
+                    entry.codec = original.codec;
+                    entry.storedSize = original.storedSize;
+                    entry.checksum = original.checksum;
+                    entry.hasChecksum = true;
+                    entry.contents = null;
+                    continue;
+                }
+            }
+            entry.encode(compression);
+            entry.computeChecksum();
+            entry.offset = offset;
+            offset += entry.storedSize;
+            if(entry.contents != null) {
+                batch.addAll(Arrays.asList(entry.contents));
+                batchSize += entry.storedSize;
+                entry.contents = null;
+            }
+            if(batch.size() >= 1024 || batchSize >= WRITE_BATCH_SIZE) {
+                Utils.writeFully(channel, batch.toArray(new ByteBuffer[0]));
+                batch.clear();
+                batchSize = 0;
+            }
+        }
+        Utils.writeFully(channel, batch.toArray(new ByteBuffer[0]));
+        return offset;
+    }
+
+    /**
+     * Writes the changed files, the file table, and the free-space bitmap to a
+     * block-based container.
+     * @param fresh If true, a new container is written to a temporary file and
+     *              replaces the existing one. Otherwise, the existing container
+     *              is updated in place.
+     * @see BlockLayout
+     * @throws IOException
+     */
+    private void writeBlocks(boolean fresh) throws IOException {
+        if(!fresh) {
+            try(FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                blocks.write(this, channel, false);
+                baseEnd = journalEnd = channel.size();
+            }
+        } else {
+            Path target = container.getAbsoluteFile().toPath();
+            Path temp = Files.createTempFile(target.getParent(), container.getName(), ".tmp");
+            try {
+                BlockLayout layout = new BlockLayout(BlockAllocator.DEFAULT_BLOCK_SIZE);
+                long size;
+                try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    layout.write(this, channel, true);
+                    size = channel.size();
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch(AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                blocks = layout;
+                baseEnd = journalEnd = size;
+                version = FORMAT_VERSION;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        clearJournal();
+        // Files that were just written can now be read from their blocks
+        try(FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ)) {
+            ContainerMapping data = new ContainerMapping(channel, 0, channel.size());
+            traverse(root, obj -> {
+                if(obj.isDirectory()) return;
+                FSFile file = (FSFile) obj;
+                // Files linked to external files are not stored yet, so they are remapped as well
+                if(file.getStored() != null || file.extents == null) return;
+                try {
+                    file.remap(BlockLayout.slices(data, file.extents, file.storedSize, blocks.allocator.blockSize),
+                            file.getCodec(), file.getSize(), file.checksum, file.revision);
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Appends the pending records of the {@link #journal} to the container and
+     * starts a compaction if the journal has grown past {@link #compactionThreshold}.
+     * Files linked to external files are remapped onto the records holding
+     * their contents.
+     * @throws IOException
+     */
+    private void appendJournal() throws IOException {
+        if(journal.isEmpty()) return;
+        Map<FSFile, Long> linked = new IdentityHashMap<>();
+        try(FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Discards any incomplete record left behind by an interrupted save
+            channel.truncate(journalEnd);
+            long start = journalEnd;
+            journalEnd += journal.append(channel, journalEnd, linked);
+            if(!linked.isEmpty()) {
+                ContainerMapping data = new ContainerMapping(channel, start, journalEnd - start);
+                for(Map.Entry<FSFile, Long> entry : linked.entrySet()) {
+                    FSFile file = entry.getKey();
+                    ByteBuffer[] contents = data.slices(entry.getValue() - start, file.getSize());
+                    file.remap(contents, Codec.NONE, file.getSize(), Utils.crc32c(contents), file.revision);
+                }
+            }
+        }
+        if(journalEnd - baseEnd > compactionThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Folds the journal into a new base image. The image is captured on the
+     * calling thread, which only requires building the file table, and is
+     * compressed and written to the disk by a background thread.
+     * @see #awaitSave()
+     */
+    private void compact() {
+        List<FileTableEntry> snapshot = getEntries();
+        FutureTask<Long> compaction = new FutureTask<>(() -> {
+            try {
+                return writeImage(snapshot, false);
+            } catch(IOException e) {
+                // The journal is still intact, so the compaction can be retried later
+                e.printStackTrace();
+                return null;
+            }
+        });
+        new Thread(compaction, "Container compactor").start();
+        pendingSave = compaction;
+    }
+
+    /**
+     * Blocks until the save or compaction running in the background, if any,
+     * has finished, and then records the layout of the container it wrote.
+     * Waiting for the save is what makes its changes to the container visible
+     * to the calling thread.
+     * @throws IOException If the save failed. The objects it was writing are
+     *                     marked as dirty again so that the next save writes them.
+     */
+    public void awaitSave() throws IOException {
+        if(pendingSave == null) return;
+        try {
+            Long size = pendingSave.get();
+            if(size != null) imageWritten(size);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the container to be saved");
+        } catch(ExecutionException e) {
+            if(saving != null) {
+                for(FileSystemObject obj : saving) {
+                    markDirty(obj);
+                }
+                // The journal records captured by the snapshot are gone, so a new image must be written
+                journalEnd = 0;
+            }
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            if(pendingSave.isDone()) {
+                pendingSave = null;
+                saving = null;
+            }
+        }
+    }
+
+    /**
+     * The container file consists of a header followed by two sections: the file
+     * table and the data.
+     * <br><br>
+     * <b>Header</b><br>
+     * The header consists of the four bytes <tt>89 46 53 43</tt> (the last three
+     * being ASCII "FSC"), the version of the format as a four-byte integer, four
+     * bytes of flags reserved for optional features, the size of the file table
+     * as an eight-byte integer, and the size of the data section as an
+     * eight-byte integer. If {@link FileTableEntry#FLAG_CHECKSUMS} is set, these
+     * are followed by the CRC32C checksum of the rest of the header and the file
+     * table as a four-byte integer. Containers written before the header was
+     * introduced are read by {@link #readImageV1(FileChannel, boolean)}.
      * <br><br>
      * <b>File table section</b><br>
-     * The file table stores the paths of each object within the file system.
-     * For files, it also denotes where the file's data begins in the data section.
-     * For an example, a file with the path <tt>/docs/info.txt</tt> might have the
-     * following entry in the file table:
+     * The file table stores the name of each object within the file system and
+     * the index of its parent's entry, or -1 if its parent is the root. For
+     * files, it also denotes where the file's data begins in the data section,
+     * the size of the file, the codec the data is compressed with, the size of
+     * the data, and the checksum of the data. For an example, an uncompressed
+     * 5-byte file with the path <tt>/docs/info.txt</tt>, where <tt>/docs</tt> is
+     * the first entry, might have the following entry in the file table:
      * <pre>
-     * 46 00 00 12 C8 00 00 00 0E 2F 64 6F 63 73 2F 69 6E 66 6F 2E 74 78 74
-     * ^  ^---------^ ^---------^ ^---------------------------------------^
-     * F  data index   path size                    path
+     * 46 00 .. 12 C8 00 .. 00 05 00 00 .. 05 1B 5E 7C 21 00 00 00 00 00 00 00 08 69 6E ...
+     * ^  ^----------^ ^-------^ ^  ^-------^ ^---------^ ^---------^ ^---------^ ^------
+     * F   data index    size  codec stored    checksum      parent    name size   name
      * </pre>
-     * In the case of a directory, the <tt>data index</tt> bytes are omitted and the
+     * In the case of a directory, only the parent and name are present and the
      * byte representing the type of the object, labelled <tt>F</tt> above, is 44
-     * (ASCII "D") rather than 46 (ASCII "F").
+     * (ASCII "D") rather than 46 (ASCII "F"). See {@link FileTableEntry} for the
+     * flags that determine which fields are present.
      * <br><br>
      * <b>Data section</b><br>
      * The contents of each FSFile within the file system are stored back-to-back in
-     * the data section. Starting at the index referenced by the file's entry in the
-     * file table, the file's data consists of four bytes denoting the size of the
-     * file, in bytes, followed by the contents of the file. For a simple text file
-     * containing only the ASCII text <tt>test</tt> followed by a line break
-     * character, the data would be as follows:
-     * <pre>
-     * 00 00 00 05 74 65 73 74 0A
-     * ^---------^ ^------------^
-     *    size        contents
-     * </pre>
+     * the data section, starting at the index referenced by the file's entry in the
+     * file table. See {@link Codec} for the compressed formats.
+     * <br><br>
+     * Files with identical contents are stored once, and their entries in the
+     * file table all refer to the same data index.
+     * <br><br>
+     * The entries wrap the existing contents of each file without copying them,
+     * so a snapshot remains consistent even if files are modified while it is
+     * being written.
      * 
      * @see #writeContainer()
-     * @return The structure and contents of the file system as an array of bytes.
-     */
-    private byte[] getFullBytes() {
-        Map<FSFile, Integer> dataStartIndices = new HashMap<FSFile, Integer>();
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        traverse(root, new FSAction() {
-            int index = 0;
-
-            @Override
-            public void run(FileSystemObject obj) {
-                if(!obj.isDirectory()) {
-                    try {
-                        FSFile file = (FSFile) obj;
-                        dataStartIndices.put(file, index);
-                        dataStream.write(Utils.intToBytes(file.getTotalSize()));
-                        index += 4;
-                        if(file.data != null) {
-                            dataStream.write(file.data);
-                            index += file.getSize();
-                        }
-                    } catch(IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+     * @return An entry for every object in the file system, in the order in which
+     *         they appear in the file table.
+     */
+    private List<FileTableEntry> getEntries() {
+        if(deduplication) indexContents();
+        return getEntries(FileTableEntry::of);
+    }
+
+    /**
+     * Captures every object in the file system and links each entry to the
+     * entry of its parent.
+     * @param capture Creates the entry for an object
+     * @return The entries, in the order in which they appear in the file table
+     * @see FileTableEntry#FLAG_PARENTS
+     */
+    List<FileTableEntry> getEntries(Function<FileSystemObject, FileTableEntry> capture) {
+        List<FileTableEntry> entries = new ArrayList<>();
+        Map<FileSystemObject, Integer> indices = new IdentityHashMap<>();
+        traverse(root, obj -> {
+            if(obj == root) return;
+            FileTableEntry entry = capture.apply(obj);
+            entry.parent = obj.parent == root ? -1 : indices.get(obj.parent);
+            if(obj.isDirectory()) indices.put(obj, entries.size());
+            entries.add(entry);
         });
-        byte[] data = dataStream.toByteArray();
+        return entries;
+    }
 
-        ByteArrayOutputStream mftStream = new ByteArrayOutputStream();
-        traverse(root, new FSAction() {
-            @Override
-            public void run(FileSystemObject obj) {
-                if(obj.isRoot()) return;
-                try {
-                    mftStream.write(obj.isDirectory() ? (byte) 0x44 : (byte) 0x46);
-                    if(!obj.isDirectory()) {
-                        mftStream.write(Utils.intToBytes(dataStartIndices.get(obj)));
-                    }
-                    mftStream.write(Utils.intToBytes(obj.getPath().length()));
-                    mftStream.write(obj.getPath().getBytes());
-                } catch(IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Creates the object described by an entry of a file table that is being read.
+     * @param directories The directory created for each of the preceding entries,
+     *                    or <tt>null</tt> for entries of files. The new object is
+     *                    added to the list in the same way.
+     * @return The new object, or <tt>null</tt> if its parent does not exist or it
+     *         already exists
+     */
+    FileSystemObject attach(FileTableEntry entry, List<FSDirectory> directories) {
+        FileSystemObject obj;
+        if(entry.path != null) {
+            String path = new String(entry.path);
+            FSDirectory parent = getParent(path);
+            String name = entry.getName();
+            obj = entry.isDirectory() ? newDirectory(parent, name) : newFile(parent, name);
+        } else {
+            // The parent is known, and a file table never contains duplicate names
+            FSDirectory parent = entry.parent < 0 ? root : directories.get(entry.parent);
+            String name = new String(entry.name);
+            obj = entry.isDirectory() ? new FSDirectory(parent, name) : new FSFile(parent, name);
+            parent.children.add(obj);
+        }
+        directories.add(obj != null && obj.isDirectory() ? (FSDirectory) obj : null);
+        return obj;
+    }
+
+    /**
+     * Computes the digests of all files that have the same size as another file,
+     * since only those can be duplicates, and rebuilds the {@link #contentIndex}.
+     * The digests are computed in parallel.
+     */
+    private void indexContents() {
+        Map<Long, List<FSFile>> bySize = walk(root).parallel()
+                .filter(obj -> !obj.isDirectory() && obj.getSize() > 0)
+                .map(obj -> (FSFile) obj)
+                .collect(Collectors.groupingBy(FSFile::getSize));
+        List<FSFile> toHash = new ArrayList<>();
+        contentIndex.clear();
+        for(List<FSFile> files : bySize.values()) {
+            for(FSFile file : files) {
+                if(file.hash == null && files.size() > 1) toHash.add(file);
             }
-        });
-        byte[] mft = mftStream.toByteArray();
+        }
+        toHash.parallelStream().forEach(file -> file.hash = hash(file.getBuffers()));
+        for(List<FSFile> files : bySize.values()) {
+            for(FSFile file : files) {
+                if(file.hash != null) contentIndex.putIfAbsent(ByteBuffer.wrap(file.hash), file);
+            }
+        }
+    }
 
-        byte[] output = new byte[data.length + mft.length + 8];
-        System.arraycopy(Utils.intToBytes(mft.length), 0, output, 0, 4);
-        System.arraycopy(Utils.intToBytes(data.length), 0, output, 4, 4);
-        System.arraycopy(mft, 0, output, 8, mft.length);
-        System.arraycopy(data, 0, output, 8 + mft.length, data.length);
-        return output;
+    /**
+     * Looks for a file with the same contents as <tt>file</tt> in the
+     * {@link #contentIndex}. If there is one, <tt>file</tt> shares its contents
+     * in memory. Otherwise, <tt>file</tt> is added to the index.
+     * <br>
+     * Contents held in several chunks, such as those built up by appending to a
+     * file, are not hashed every time they change. They are deduplicated when the
+     * container is saved instead.
+     */
+    private void deduplicate(FSFile file) {
+        // Contents that are not in memory, such as those of large imported files, have nothing to share
+        if(!file.isLoaded()) return;
+        ByteBuffer[] data = file.load();
+        if(data == null || data.length != 1 || !data[0].hasRemaining()) return;
+        if(file.hash == null) file.hash = hash(data);
+        ByteBuffer key = ByteBuffer.wrap(file.hash);
+        FSFile existing = contentIndex.get(key);
+        if(existing != null && existing != file && existing.isLoaded() && Arrays.equals(existing.hash, file.hash)
+                && isAttached(existing)) {
+            file.share(existing);
+        } else {
+            contentIndex.put(key, file);
+        }
+    }
+
+    /**
+     * @return The SHA-256 digest of the remaining contents of the given buffers,
+     * taken in order.
+     */
+    static byte[] hash(ByteBuffer... contents) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for(ByteBuffer buffer : contents) {
+                digest.update(buffer.duplicate());
+            }
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the container file from the disk in lazy mode.
+     * 
+     * @see #readContainer(boolean)
+     * @throws IOException
+     */
+    public void readContainer() throws IOException {
+        readContainer(true);
     }
 
     /**
      * Reads the container file from the disk.
+     * <br>
+     * The container is memory-mapped and only its file table is parsed. In lazy
+     * mode, the contents of each file remain a view into the mapping until the
+     * file is first read or modified, so the time taken to open a container is
+     * proportional to the number of objects it contains rather than its size.
+     * Otherwise, the contents of every file are read into memory immediately.
+     * <br>
+     * Loading happens in stages: the file table is parsed and validated in full,
+     * the tree is built from it, and then, unless loading lazily, the contents of
+     * the files are read in parallel. See {@link #loadParallelism}.
      * 
+     * @param lazy Whether to defer reading the contents of each file
      * @see #writeContainer()
-     * @see #getFullBytes()
+     * @see #getEntries()
      * @throws IOException
      */
-    public void readContainer() throws IOException {
-        byte[] full = Files.readAllBytes(container.toPath());
+    public void readContainer(boolean lazy) throws IOException {
+        loading = true;
         try {
-            lastIOHash = MessageDigest.getInstance("SHA-1").digest(full);
-        } catch(NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        byte[] mft = new byte[Utils.bytesToInt(Arrays.copyOfRange(full, 0, 4))];
-        byte[] data = new byte[Utils.bytesToInt(Arrays.copyOfRange(full, 4, 8))];
-        System.arraycopy(full, 8, mft, 0, mft.length);
-        System.arraycopy(full, 8 + mft.length, data, 0, data.length);
-        for(int i = 0; i < mft.length; i++) {
-            boolean isDirectory = mft[i] == (byte) 0x44;
-            i++;
+            readImage(lazy);
+        } finally {
+            loading = false;
+        }
+        clearDirty();
+    }
+
+    private void readImage(boolean lazy) throws IOException {
+        ByteBuffer log = null;
+        try(FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ)) {
+            // An empty container holds an empty file system
+            if(channel.size() < 8) return;
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            channel.read(magic, 0);
+            if(Arrays.equals(magic.array(), MAGIC)) {
+                readImageV2(channel, lazy);
+            } else {
+                readImageV1(channel, lazy);
+            }
+            if(channel.size() > baseEnd) {
+                if(channel.size() - baseEnd > Integer.MAX_VALUE) {
+                    throw new IOException("Journal too large: " + (channel.size() - baseEnd));
+                }
+                log = channel.map(FileChannel.MapMode.READ_ONLY, baseEnd, channel.size() - baseEnd);
+            }
+        }
+        if(log != null) {
+            journalEnd += Journal.replay(this, log, version >= 2);
+            journaling = true;
+        }
+    }
+
+    /**
+     * Reads a container in the current format.
+     * @see #getEntries()
+     * @throws IOException
+     */
+    private void readImageV2(FileChannel channel, boolean lazy) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header, header.position()) >= 0);
+        header.flip();
+        header.position(MAGIC.length);
+        version = header.getInt();
+        if(version > FORMAT_VERSION) {
+            throw new IOException("Unsupported container version: " + version);
+        }
+        int flags = header.getInt();
+        long mftSize = header.getLong();
+        long dataSize = header.getLong();
+        if((flags & BlockLayout.FLAG_BLOCKS) != 0) {
+            header = ByteBuffer.allocate(BlockLayout.HEADER_SIZE + 4);
+            while(header.hasRemaining() && channel.read(header, header.position()) >= 0);
+            header.flip().position(HEADER_SIZE);
+            blocks = BlockLayout.read(this, channel, header, flags, mftSize, dataSize, lazy);
+            blockLayout = true;
+            baseEnd = journalEnd = dataSize;
+            return;
+        }
+        if(mftSize > Integer.MAX_VALUE) throw new IOException("File table too large: " + mftSize);
+        boolean checksummed = (flags & FileTableEntry.FLAG_CHECKSUMS) != 0;
+        int headerSize = checksummed ? HEADER_SIZE + 4 : HEADER_SIZE;
+        ByteBuffer mft = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, mftSize);
+        if(checksummed) {
+            // The checksum covers the rest of the header and the file table
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            while(checksum.hasRemaining() && channel.read(checksum, HEADER_SIZE + checksum.position()) >= 0);
+            if(checksum.flip().getInt() != Utils.crc32c(header.flip(), mft)) {
+                throw new IOException("File table checksum mismatch");
+            }
+        }
+        ContainerMapping data = new ContainerMapping(channel, headerSize + mftSize, dataSize);
+        baseEnd = journalEnd = headerSize + mftSize + dataSize;
+        // The whole file table is validated before any objects are created
+        List<FileTableEntry> entries = FileTableEntry.readAll(mft, flags);
+        for(FileTableEntry entry : entries) {
+            if(!entry.isDirectory() && entry.offset + entry.storedSize > dataSize) {
+                throw new IOException("File data out of bounds: " + entry.getName());
+            }
+        }
+        List<FSDirectory> directories = new ArrayList<>();
+        List<FSFile> files = new ArrayList<>();
+        for(FileTableEntry entry : entries) {
+            FileSystemObject obj = attach(entry, directories);
+            if(obj != null && !obj.isDirectory()) {
+                FSFile file = (FSFile) obj;
+                file.map(data.slices(entry.offset, entry.storedSize), entry.codec, entry.size);
+                if(entry.hasChecksum) file.setChecksum(entry.checksum);
+                files.add(file);
+            }
+        }
+        if(!lazy) materialize(files);
+    }
+
+    /**
+     * Reads the contents of the given files into memory, using up to
+     * {@link #loadParallelism} threads. Files are decompressed independently of
+     * each other, so the result does not depend on the number of threads.
+     * @throws IOException If the contents of a file cannot be read
+     */
+    void materialize(List<FSFile> files) throws IOException {
+        forEachParallel(files, loadParallelism, FSFile::load);
+    }
+
+    /**
+     * Checks the contents of every file that is stored in the container against
+     * their checksum. The files are checked in parallel using up to
+     * {@link #loadParallelism} threads, and their contents are not decompressed
+     * unless they have no checksum.
+     * @return The paths of the files whose contents are corrupt
+     * @throws IOException
+     */
+    public List<String> verify() throws IOException {
+        List<FSFile> files = walk(root).filter(obj -> !obj.isDirectory())
+                .map(obj -> (FSFile) obj)
+                .collect(Collectors.toList());
+        Set<FSFile> corrupt = ConcurrentHashMap.newKeySet();
+        forEachParallel(files, loadParallelism, file -> {
+            if(!file.verify()) corrupt.add(file);
+        });
+        List<String> paths = new ArrayList<>();
+        for(FSFile file : files) {
+            if(corrupt.contains(file)) paths.add(file.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Performs an action on each of the given items using up to
+     * <tt>parallelism</tt> threads. An {@link UncheckedIOException} thrown by
+     * the action is rethrown as its cause.
+     * @throws IOException
+     */
+    private static <T> void forEachParallel(List<T> items, int parallelism, Consumer<T> action) throws IOException {
+        try {
+            if(parallelism <= 1 || items.size() < 2) {
+                for(T item : items) {
+                    action.accept(item);
+                }
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> items.parallelStream().forEach(action)).get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for worker threads");
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads a container written before the format was versioned. Such containers
+     * begin with the size of the file table and the size of the data section as
+     * four-byte integers, and each file's data is preceded by four bytes denoting
+     * its size plus four. Data indices in the file table are also four bytes.
+     * <br>
+     * The next save rewrites the container in the current format.
+     * @see #upgrade()
+     * @throws IOException
+     */
+    private void readImageV1(FileChannel channel, boolean lazy) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while(header.hasRemaining() && channel.read(header, header.position()) >= 0);
+        header.flip();
+        int mftSize = header.getInt();
+        int dataSize = header.getInt();
+        version = 1;
+        // The mapping remains valid after the channel is closed
+        ByteBuffer mft = channel.map(FileChannel.MapMode.READ_ONLY, 8, mftSize);
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 8 + mftSize, dataSize);
+        baseEnd = journalEnd = 8L + mftSize + dataSize;
+        while(mft.hasRemaining()) {
+            boolean isDirectory = mft.get() == (byte) 0x44;
             int startIndex = 0;
             if(!isDirectory) {
-                startIndex = Utils.bytesToInt(Arrays.copyOfRange(mft, i, i + 4));
-                i += 4;
+                startIndex = mft.getInt();
             }
-            int pathSize = Utils.bytesToInt(Arrays.copyOfRange(mft, i, i + 4));
-            i += 4;
-            String path = new String(Arrays.copyOfRange(mft, i, i + pathSize));
+            byte[] pathBytes = new byte[mft.getInt()];
+            mft.get(pathBytes);
+            String path = new String(pathBytes);
             FSDirectory parent = getParent(path);
             String name = path.substring(path.lastIndexOf('/') + 1, path.length());
             if(isDirectory) {
                 newDirectory(parent, name);
             } else {
                 FSFile file = newFile(parent, name);
-                int size = Utils.bytesToInt(Arrays.copyOfRange(data, startIndex, startIndex + 4));
-                if(size > 0) {
-                    file.write(Arrays.copyOfRange(data, startIndex + 4, startIndex + size));
-                } else {
-                    file.write(new byte[0]);
-                }
+                int size = data.getInt(startIndex) - 4;
+                file.map(data.slice(startIndex + 4, Math.max(size, 0)));
+                if(!lazy) file.load();
             }
-            i += pathSize - 1;
         }
     }
 
+    /**
+     * Rewrites the container in the current format, even if nothing has changed.
+     * @see #FORMAT_VERSION
+     * @throws IOException
+     */
+    public void upgrade() throws IOException {
+        awaitSave();
+        if(blockLayout) {
+            writeBlocks(true);
+        } else {
+            imageWritten(writeImage(getEntries(), true));
+        }
+        clearJournal();
+        clearDirty();
+    }
+
     /**
      * @param path The path of the object to get the parent of
      * @return The parent <tt>FSDirectory</tt> of the object at the specified path,
@@ -292,30 +1127,39 @@ public class FileSystem {
     public FileSystemObject getObject(FSDirectory parent, String path) {
         if(path.isBlank()) return null;
         if(path.equals("/")) return root;
+        int start = 0;
         if(path.charAt(0) == '/') {
             parent = root;
-            path = path.substring(1);
+            start = 1;
         }
-        if(!path.contains("/")) return parent.getChild(path);
-        String[] splitPath = path.split("/", 2);
-        if(splitPath.length == 0) return null;
-        FileSystemObject obj = parent.getChild(splitPath[0]);
-        if(obj == null) {
-            return null;
-        } else if(obj.isDirectory()) {
-            return getObject((FSDirectory) obj, splitPath[1]);
-        } else {
-            return obj;
+        while(true) {
+            int end = path.indexOf('/', start);
+            if(end < 0) return parent.getChild(path.substring(start));
+            FileSystemObject obj = parent.getChild(path.substring(start, end));
+            if(obj == null || !obj.isDirectory()) return obj;
+            parent = (FSDirectory) obj;
+            start = end + 1;
         }
     }
 
     /**
      * @param path The path to an object
      * @return The <tt>FileSystemObject</tt> at the specified path if it exists, otherwise <tt>null</tt>.
+     *         Absolute paths are looked up in the {@link #pathCache} first.
      * @see #getObject(FSDirectory, String)
      */
     public FileSystemObject getObject(String path) {
-        return getObject(root, path);
+        if(path.length() < 2 || path.charAt(0) != '/') return getObject(root, path);
+        long start = pathCache.timing ? System.nanoTime() : 0;
+        FileSystemObject obj = pathCache.get(path);
+        boolean hit = obj != null;
+        if(!hit) {
+            obj = getObject(root, path);
+            // Paths that lead through a file resolve to that file, which is not at the path itself
+            if(obj != null && obj.getPath().equals(path)) pathCache.put(path, obj);
+        }
+        if(pathCache.timing) pathCache.record(hit, System.nanoTime() - start);
+        return obj;
     }
 
     /**
@@ -371,35 +1215,141 @@ public class FileSystem {
      * @throws IOException
      */
     public static void load(File container) throws IOException {
+        load(container, true);
+    }
+
+    /**
+     * Loads the file system contained within the specified container.
+     * @param lazy Whether the contents of each file should be read on demand
+     * @see #readContainer(boolean)
+     * @throws IOException
+     */
+    public static void load(File container, boolean lazy) throws IOException {
         if(container.isDirectory()) throw new RuntimeException("Container may not be a directory");
         Main.fs = new FileSystem(container);
         if(Main.fs.container.exists()) {
-            Main.fs.readContainer();
+            Main.fs.readContainer(lazy);
         } else {
             Main.fs.container.createNewFile();
         }
     }
 
     /**
-     * @return True if <tt>currentData</tt> does not match the previous hash
-     * or if the previous hash is null, otherwise false. 
+     * @return Whether <tt>obj</tt> can be reached from the root of the file system.
      */
-    public boolean hasChangedSinceLastIO(byte[] currentData) {
-        if(lastIOHash == null) return true;
-        byte[] currentHash;
-        try {
-            currentHash = MessageDigest.getInstance("SHA-1").digest(currentData);
-        } catch(NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return true;
-        }
-        for(int i = 0; i < currentHash.length; i++) {
-            if(currentHash[i] != lastIOHash[i]) return true;
+    boolean isAttached(FileSystemObject obj) {
+        while(obj != root) {
+            if(obj.parent == null || !obj.parent.children.contains(obj)) return false;
+            obj = obj.parent;
         }
+        return true;
+    }
+
+    /**
+     * @return True if any object has been marked as dirty since the container
+     * was last read or written, or if the container has never been written,
+     * otherwise false.
+     */
+    public boolean hasChangedSinceLastIO() {
+        return baseEnd == 0 || !dirty.isEmpty();
+    }
+
+    /**
+     * @return The objects that have changed since the container was last read or
+     * written, in the order in which they were first changed. Deleted objects are
+     * included, as are directories whose children were added, removed, or renamed.
+     */
+    public Set<FileSystemObject> getDirtyObjects() {
+        return Collections.unmodifiableSet(dirty);
+    }
+
+    /**
+     * @return Whether the next save can append the {@link #journal} to the container.
+     */
+    private boolean canAppend() {
+        return journaling && !unrecorded && journalEnd > 0 && version == FORMAT_VERSION;
+    }
+
+    /**
+     * Discards the pending records of the {@link #journal} once every change
+     * they describe has been saved.
+     */
+    private void clearJournal() {
+        journal.clear();
+        unrecorded = false;
+    }
+
+    /**
+     * @return Whether a change should be recorded in the {@link #journal}.
+     *         Changes are only recorded while {@link #journaling} is enabled.
+     */
+    private boolean recording() {
+        if(journaling) return true;
+        unrecorded = true;
         return false;
     }
 
+    private void markDirty(FileSystemObject obj) {
+        obj.dirty = true;
+        dirty.add(obj);
+    }
+
+    private void clearDirty() {
+        for(FileSystemObject obj : dirty) {
+            obj.dirty = false;
+        }
+        dirty.clear();
+    }
+
     /**
+     * Called when <tt>obj</tt> is added to a directory.
+     * @see Journal#created(FileSystemObject)
+     */
+    void created(FileSystemObject obj) {
+        if(loading) return;
+        if(recording()) journal.created(obj);
+        markDirty(obj);
+        markDirty(obj.parent);
+    }
+
+    /**
+     * Called when the contents of <tt>file</tt> are replaced.
+     * @see Journal#written(FSFile)
+     */
+    void written(FSFile file) {
+        if(loading) return;
+        if(deduplication) deduplicate(file);
+        if(recording()) journal.written(file);
+        markDirty(file);
+    }
+
+    /**
+     * Called when the object at <tt>oldPath</tt> is renamed.
+     * @see Journal#renamed(FileSystemObject, String)
+     */
+    void renamed(FileSystemObject obj, String oldPath) {
+        pathCache.invalidate(oldPath);
+        if(loading) return;
+        if(recording()) journal.renamed(obj, oldPath);
+        markDirty(obj);
+        markDirty(obj.parent);
+    }
+
+    /**
+     * Called when <tt>obj</tt> is removed from its directory.
+     * @see Journal#deleted(FileSystemObject)
+     */
+    void deleted(FileSystemObject obj) {
+        if(pathCache.getSize() > 0) pathCache.invalidate(obj.getPath());
+        if(loading) return;
+        if(recording()) journal.deleted(obj);
+        markDirty(obj);
+        markDirty(obj.parent);
+    }
+
+    /**
+     * Large files are mapped rather than read, so their contents are only copied
+     * when the container is saved, and they must not be changed until then.
      * @param toImport The external file to be imported.
      * @param destination The path at which to put the imported file within the file system.
      * @return False if the destination already exists, otherwise true.
@@ -419,11 +1369,182 @@ public class FileSystem {
             return false;
         } else {
             FSFile target = newFile(parent, targetName);
-            target.write(Files.readAllBytes(toImport.toPath()));
+            ByteBuffer[] contents = read(toImport);
+            if(contents[0].isDirect()) {
+                target.link(contents, null);
+            } else {
+                target.write(contents, null);
+            }
             return true;
         }
     }
 
+    /**
+     * Imports several external files into a directory within the file system.
+     * The files are read and their digests are computed in parallel, so
+     * duplicates among them and within the file system are detected without
+     * hashing them again.
+     * @param destination The path of the directory in which to put the imported files
+     * @return The number of files that were imported. Files whose destination
+     *         already exists are skipped.
+     * @throws IOException
+     */
+    public int importFiles(Collection<File> toImport, String destination) throws IOException {
+        if(destination.endsWith("/")) destination = destination.substring(0, destination.length() - 1);
+        List<File> files = new ArrayList<>(toImport);
+        ByteBuffer[][] contents = new ByteBuffer[files.size()][];
+        byte[][] hashes = new byte[files.size()][];
+        try {
+            IntStream.range(0, files.size()).parallel().forEach(i -> {
+                try {
+                    contents[i] = read(files.get(i));
+                    if(deduplication) hashes[i] = hash(contents[i]);
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int imported = 0;
+        for(int i = 0; i < files.size(); i++) {
+            String path = destination + "/" + files.get(i).getName();
+            FSFile target = newFile(createParents(root, path), files.get(i).getName());
+            if(target == null) continue;
+            if(contents[i][0].isDirect()) {
+                target.link(contents[i], hashes[i]);
+            } else {
+                target.write(contents[i], hashes[i]);
+            }
+            imported++;
+        }
+        return imported;
+    }
+
+    /**
+     * Imports an external directory and everything beneath it. The directories
+     * are created first, with the children of each directory inserted into it
+     * at once, and then the external files are read in parallel using up to
+     * {@link #transferParallelism} threads. Symbolic links to directories are
+     * not followed.
+     * <br>
+     * The container is not saved, so a whole tree can be imported before it is
+     * written once.
+     * @param destination The path of the directory to create within the file
+     *                    system. <tt>%s</tt> is replaced with the name of the
+     *                    external directory.
+     * @return False if the destination already exists, otherwise true.
+     * @throws IOException
+     * @see #importFile(File, String)
+     */
+    public boolean importDirectory(File toImport, String destination) throws IOException {
+        if(destination.contains("%s")) {
+            destination = String.format(destination, toImport.getName());
+        }
+        if(destination.endsWith("/")) {
+            destination = destination.substring(0, destination.length() - 1);
+        }
+        if(destination.isEmpty()) {
+            destination = "/" + toImport.getName();
+        }
+        String targetName = destination.substring(destination.lastIndexOf('/') + 1);
+        FSDirectory parent = createParents(root, destination);
+        if(parent.getChild(targetName) != null) return false;
+        // The tree is built before it is attached, so that each directory is sorted once rather than once per child
+        FSDirectory target = new FSDirectory(parent, targetName);
+        Map<FSDirectory, List<FileSystemObject>> children = new LinkedHashMap<>();
+        List<FSFile> files = new ArrayList<>();
+        List<File> sources = new ArrayList<>();
+        collect(toImport, target, children, files, sources);
+
+        ByteBuffer[][] contents = new ByteBuffer[files.size()][];
+        byte[][] hashes = new byte[files.size()][];
+        List<Integer> indices = IntStream.range(0, files.size()).boxed().collect(Collectors.toList());
+        forEachParallel(indices, transferParallelism, i -> {
+            try {
+                contents[i] = read(sources.get(i));
+                if(deduplication && !contents[i][0].isDirect()) hashes[i] = hash(contents[i]);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        parent.children.add(target);
+        for(Map.Entry<FSDirectory, List<FileSystemObject>> entry : children.entrySet()) {
+            entry.getKey().addChildren(entry.getValue());
+        }
+        for(int i = 0; i < files.size(); i++) {
+            if(contents[i][0].isDirect()) {
+                files.get(i).link(contents[i], null);
+            } else {
+                files.get(i).write(contents[i], hashes[i]);
+            }
+            contents[i] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the objects corresponding to the contents of an external
+     * directory beneath <tt>dir</tt> without adding them to it, recording the
+     * children of each directory in <tt>children</tt> in pre-order, and each
+     * file along with the external file it is imported from.
+     */
+    private static void collect(File external, FSDirectory dir, Map<FSDirectory, List<FileSystemObject>> children,
+            List<FSFile> files, List<File> sources) throws IOException {
+        File[] entries = external.listFiles();
+        if(entries == null) throw new IOException("Could not list directory: " + external.getAbsolutePath());
+        List<FileSystemObject> list = new ArrayList<>(entries.length);
+        children.put(dir, list);
+        for(File entry : entries) {
+            if(entry.isDirectory()) {
+                if(Files.isSymbolicLink(entry.toPath())) continue;
+                FSDirectory child = new FSDirectory(dir, entry.getName());
+                list.add(child);
+                collect(entry, child, children, files, sources);
+            } else if(entry.isFile()) {
+                FSFile child = new FSFile(dir, entry.getName());
+                list.add(child);
+                files.add(child);
+                sources.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Imports the files and directories in a tar or zip archive, which is read
+     * as a stream rather than extracted. The format of the archive is chosen by
+     * its extension, which may be <tt>.tar</tt>, <tt>.tar.gz</tt>,
+     * <tt>.tgz</tt>, <tt>.zip</tt>, or <tt>.jar</tt>. Parent directories are
+     * created as needed, and files that already exist are skipped.
+     * @param destination The path of the directory in which to put the archive's entries
+     * @return The number of files that were imported
+     * @throws IOException If the archive cannot be read or its format is not supported
+     * @see Archive
+     */
+    public int importArchive(File archive, String destination) throws IOException {
+        if(destination.endsWith("/")) destination = destination.substring(0, destination.length() - 1);
+        Archive.Format format = Archive.Format.of(archive.getName());
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(archive.toPath()))) {
+            return Archive.read(this, in, format, destination);
+        }
+    }
+
+    /**
+     * @return The contents of an external file. Files of at least
+     *         {@link #IMPORT_MAP_SIZE} bytes are mapped into memory rather than
+     *         read. Other files are read into a single heap buffer.
+     * @throws IOException
+     */
+    private static ByteBuffer[] read(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size >= IMPORT_MAP_SIZE) return new ContainerMapping(channel, 0, size).slices(0, size);
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while(contents.hasRemaining() && channel.read(contents) >= 0);
+            return new ByteBuffer[] { contents.flip() };
+        }
+    }
+
     /**
      * @see #importFile(File, String)
      */
@@ -440,7 +1561,74 @@ public class FileSystem {
      */
     public boolean exportFile(FSFile toExport, File destination, boolean overwrite) throws IOException {
         if((destination.exists() && !overwrite) || destination.isDirectory()) return false;
-        Files.write(destination.toPath(), toExport.data);
+        try(FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            toExport.transferTo(channel);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a directory and everything beneath it to a tar or zip archive,
+     * whose format is chosen by its extension as in
+     * {@link #importArchive(File, String)}. The contents of each file are
+     * streamed to the archive without being loaded into memory.
+     * @param overwrite If true, overwrites the archive if it exists.
+     * @return True if the archive could be written, otherwise false.
+     * @throws IOException If the archive cannot be written or its format is not supported
+     */
+    public boolean exportArchive(FSDirectory toExport, File destination, boolean overwrite) throws IOException {
+        if((destination.exists() && !overwrite) || destination.isDirectory()) return false;
+        Archive.Format format = Archive.Format.of(destination.getName());
+        try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(destination.toPath()))) {
+            Archive.write(this, toExport, out, format);
+        }
+        return true;
+    }
+
+    /**
+     * Exports a directory and everything beneath it. The external directories
+     * are created first, and then the files are written in parallel using up to
+     * {@link #transferParallelism} threads.
+     * @param destination The external directory to export to, which is created
+     *                    if it does not exist
+     * @param overwrite If true, exports into the destination even if it already
+     *                  exists, overwriting any files at the same paths.
+     * @return True if the directory could be exported, otherwise false.
+     * @throws IOException If an external directory could not be created or a
+     *                     file could not be written
+     */
+    public boolean exportDirectory(FSDirectory toExport, File destination, boolean overwrite) throws IOException {
+        if((destination.exists() && !overwrite) || destination.isFile()) return false;
+        List<FSFile> files = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        String base = toExport.getPath();
+        try {
+            traverse(toExport, obj -> {
+                File target = new File(destination, obj.getPath().substring(base.length()));
+                if(obj.isDirectory()) {
+                    if(!target.isDirectory() && !target.mkdirs()) {
+                        throw new UncheckedIOException(
+                                new IOException("Could not create directory: " + target.getAbsolutePath()));
+                    }
+                } else {
+                    files.add((FSFile) obj);
+                    targets.add(target);
+                }
+            });
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<Integer> indices = IntStream.range(0, files.size()).boxed().collect(Collectors.toList());
+        forEachParallel(indices, transferParallelism, i -> {
+            try {
+                if(!exportFile(files.get(i), targets.get(i), true)) {
+                    throw new IOException("Destination is a directory: " + targets.get(i).getAbsolutePath());
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
         return true;
     }
 }
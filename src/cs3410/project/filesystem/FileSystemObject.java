@@ -1,8 +1,27 @@
 package cs3410.project.filesystem;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
 public abstract class FileSystemObject implements Comparable<FileSystemObject> {
     public FSDirectory parent;
     public String name;
+    /**
+     * Whether this object has changed since the container was last read or written.
+     * @see FileSystem#getDirtyObjects()
+     */
+    boolean dirty = false;
+    /**
+     * The absolute path of this object, or <tt>null</tt> if it has not been
+     * built since the object or one of its ancestors was last renamed or moved.
+     * The path of an object is only cached while the path of its parent is
+     * cached, unless its parent is the root.
+     * @see #invalidatePath()
+     */
+    private String path;
 
     public FileSystemObject(FSDirectory parent, String name) {
         this.parent = parent;
@@ -14,21 +33,99 @@ public abstract class FileSystemObject implements Comparable<FileSystemObject> {
     }
 
     /**
-     * @return The absolute path of this <tt>FileSystemObject</tt>.
+     * @return The absolute path of this <tt>FileSystemObject</tt>. The path is
+     *         built once and cached until the object or one of its ancestors
+     *         is renamed or moved.
      */
     public String getPath() {
         if(this.isRoot()) return "";
-        StringBuilder sb = new StringBuilder();
-        sb.append('/');
-        sb.append(name);
-        if(parent != null) sb.insert(0, parent.getPath());
-        return sb.toString();
+        String path = this.path;
+        if(path == null) {
+            path = (parent != null ? parent.getPath() : "") + "/" + name;
+            this.path = path;
+        }
+        return path;
+    }
+
+    /**
+     * Appends the absolute path of this object to <tt>out</tt>, without
+     * building the paths of its ancestors if they are not cached.
+     */
+    public void appendPath(StringBuilder out) {
+        if(this.isRoot()) return;
+        if(path != null) {
+            out.append(path);
+            return;
+        }
+        if(parent != null) parent.appendPath(out);
+        out.append('/').append(name);
+    }
+
+    /**
+     * Encodes the absolute path of this object into <tt>out</tt>, without
+     * building the paths of its ancestors if they are not cached.
+     * <br>
+     * The encoder is reset first. Characters that cannot be encoded are
+     * replaced or reported according to the encoder's error actions.
+     * @throws BufferOverflowException  If <tt>out</tt> has too little room for
+     *                                  the path, in which case its position is
+     *                                  left where the path would have ended
+     *                                  partway through
+     * @throws IllegalArgumentException If the path cannot be encoded
+     */
+    public void writePath(ByteBuffer out, CharsetEncoder encoder) {
+        encoder.reset();
+        encodePath(out, encoder);
+        check(encoder.encode(CharBuffer.allocate(0), out, true));
+        check(encoder.flush(out));
+    }
+
+    void encodePath(ByteBuffer out, CharsetEncoder encoder) {
+        if(this.isRoot()) return;
+        if(path != null) {
+            check(encoder.encode(CharBuffer.wrap(path), out, false));
+            return;
+        }
+        if(parent != null) parent.encodePath(out, encoder);
+        check(encoder.encode(CharBuffer.wrap("/"), out, false));
+        check(encoder.encode(CharBuffer.wrap(name), out, false));
+    }
+
+    private void check(CoderResult result) {
+        if(result.isOverflow()) throw new BufferOverflowException();
+        if(result.isError()) throw new IllegalArgumentException("Cannot encode path of '" + name + "': " + result);
+    }
+
+    /**
+     * Discards the cached paths of this object and its descendants. Called
+     * whenever the object is renamed or moved.
+     */
+    void invalidatePath() {
+        if(path == null) return;
+        path = null;
+        if(isDirectory()) {
+            FileSet children = ((FSDirectory) this).children;
+            for(int i = 0; i < children.size(); i++) {
+                children.get(i).invalidatePath();
+            }
+        }
     }
 
-    public void rename(String newName) {
-        if(name.equals(newName)) return;
+    /**
+     * Changes the name of this object.
+     * @return False if another object in the same directory already has the
+     *         new name, in which case nothing is changed, otherwise true.
+     */
+    public boolean rename(String newName) {
+        if(name.equals(newName)) return true;
+        if(parent != null && parent.getChild(newName) != null) return false;
+        String oldPath = getPath();
+        String oldName = name;
         this.name = newName;
-        parent.children.sort();
+        invalidatePath();
+        parent.children.renamed(this, oldName);
+        if(Main.fs != null) Main.fs.renamed(this, oldPath);
+        return true;
     }
 
     /**
@@ -38,6 +135,14 @@ public abstract class FileSystemObject implements Comparable<FileSystemObject> {
         return this.equals(Main.fs.root);
     }
 
+    /**
+     * @return Whether this object has been created, written, renamed, or deleted,
+     * or has had its children changed, since the container was last read or written.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
     /**
      * @return Whether this object is an instance of <tt>FSDirectory</tt>.
      */
@@ -54,10 +159,28 @@ public abstract class FileSystemObject implements Comparable<FileSystemObject> {
         return this.isRoot() ? "/" : getPath();
     }
 
+    /**
+     * Adds to the totals of the directories above this object, up to the first
+     * one that is not attached to its parent, so that the totals of a detached
+     * subtree stay consistent until it is attached again.
+     * @param bytes  The change in the size of the files beneath each directory
+     * @param objects The change in the number of objects beneath each directory
+     * @see FSDirectory#getSize()
+     */
+    void updateAncestors(long bytes, long objects) {
+        FileSystemObject obj = this;
+        FSDirectory dir = parent;
+        while(dir != null && dir.children.contains(obj)) {
+            dir.addTotals(bytes, objects);
+            obj = dir;
+            dir = dir.parent;
+        }
+    }
+
     /**
      * @return The size of the object's content.
      * @see FSFile#getSize()
      * @see FSDirectory#getSize()
      */
-    public abstract int getSize();
+    public abstract long getSize();
 }
@@ -0,0 +1,284 @@
+package cs3410.project.filesystem;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An entry in the file table of a container.
+ * <br>
+ * The fields present in an entry depend on the flags in the container's header.
+ * In a block-based container, the data index of a file is replaced by its extent
+ * list, and if {@link #FLAG_CODECS} is set, the size of a file is followed by the
+ * codec its contents are compressed with as a single byte and the number of
+ * bytes they occupy in the container as an eight-byte integer.
+ * <br>
+ * If {@link #FLAG_PARENTS} is set, the path of each object is replaced by the
+ * index of its parent's entry within the file table as a four-byte integer, or
+ * -1 if its parent is the root, followed by the size and bytes of its name.
+ * Every directory's entry precedes the entries of its children, so a reader
+ * can attach each object to its parent without resolving any paths.
+ * <br>
+ * If {@link #FLAG_CHECKSUMS} is set, the entry of each file also holds the
+ * CRC32C checksum of its stored contents as a four-byte integer, following the
+ * stored size.
+ *
+ * @see FileSystem#getEntries()
+ * @see BlockLayout
+ */
+class FileTableEntry {
+    static final byte DIRECTORY = 0x44;
+    static final byte FILE = 0x46;
+    /**
+     * Set in the flags of containers whose files may be compressed.
+     * @see Codec
+     */
+    static final int FLAG_CODECS = 2;
+    /**
+     * Set in the flags of containers whose entries refer to their parent's entry
+     * rather than storing a full path.
+     */
+    static final int FLAG_PARENTS = 4;
+    /**
+     * Set in the flags of containers that hold a checksum of each file's contents
+     * and of the header and file table.
+     */
+    static final int FLAG_CHECKSUMS = 8;
+    final byte type;
+    /**
+     * The object's name, or <tt>null</tt> if the entry was read from a table
+     * that stores paths.
+     */
+    final byte[] name;
+    /**
+     * The object's absolute path, if the entry was read from a table that stores paths.
+     */
+    final byte[] path;
+    /**
+     * The index of the entry of the object's parent, or -1 if it is the root.
+     */
+    int parent = -1;
+    long offset;
+    long size;
+    byte codec = Codec.NONE;
+    long storedSize;
+    long[] extents;
+    /**
+     * The CRC32C checksum of the file's stored contents, if {@link #hasChecksum} is set.
+     */
+    int checksum;
+    boolean hasChecksum = false;
+    /**
+     * When writing, the contents of the file compressed with {@link #codec}, in order.
+     */
+    ByteBuffer[] contents;
+    /**
+     * When writing, the digest of the file's contents, if it is known.
+     */
+    byte[] hash;
+    /**
+     * When writing, the file the entry was captured from.
+     */
+    FSFile file;
+    /**
+     * When writing, the revision of the file's contents that were captured.
+     * @see FSFile#revision
+     */
+    int revision;
+
+    FileTableEntry(byte type, byte[] name, byte[] path) {
+        this.type = type;
+        this.name = name;
+        this.path = path;
+    }
+
+    /**
+     * @return An entry holding the type and name of <tt>obj</tt>.
+     */
+    static FileTableEntry named(FileSystemObject obj) {
+        return new FileTableEntry(obj.isDirectory() ? DIRECTORY : FILE, obj.name.getBytes(), null);
+    }
+
+    /**
+     * Captures the path and contents of <tt>obj</tt> as they are now. The
+     * contents of files that have not changed since they were read or saved are
+     * kept in the form in which they are stored in the container.
+     */
+    static FileTableEntry of(FileSystemObject obj) {
+        FileTableEntry entry = named(obj);
+        if(!obj.isDirectory()) {
+            FSFile file = (FSFile) obj;
+            // The file is locked so that a background save cannot remap it halfway through
+            synchronized(file) {
+                entry.size = file.getSize();
+                entry.extents = file.extents;
+                entry.hash = file.hash;
+                entry.contents = file.getStored();
+                if(entry.contents != null) {
+                    entry.codec = file.getCodec();
+                    // The checksum is carried over so that corrupt contents are not given a new one
+                    entry.checksum = file.checksum;
+                    entry.hasChecksum = file.hasChecksum;
+                } else {
+                    entry.contents = file.getBuffers();
+                }
+                entry.revision = file.revision;
+            }
+            entry.file = file;
+            entry.storedSize = Utils.remaining(entry.contents);
+        }
+        return entry;
+    }
+
+    boolean isDirectory() {
+        return type == DIRECTORY;
+    }
+
+    /**
+     * @return The name of the object, which is the last part of its path.
+     */
+    String getName() {
+        if(name != null) return new String(name);
+        String path = new String(this.path);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Compresses {@link #contents} if they are not compressed yet. Contents held
+     * in several chunks are joined first, unless they are too large to compress.
+     * @param compression Whether compression is enabled
+     * @see Codec#encode(String, ByteBuffer)
+     */
+    void encode(boolean compression) {
+        if(isDirectory() || codec != Codec.NONE || !compression || contents == null) return;
+        if(Utils.remaining(contents) > Codec.MAX_SIZE) return;
+        Codec.Encoded encoded = Codec.encode(getName(), Utils.concat(contents));
+        if(encoded.codec == Codec.NONE) return;
+        hasChecksum = false;
+        codec = encoded.codec;
+        contents = new ByteBuffer[] { encoded.data };
+        storedSize = encoded.data.remaining();
+    }
+
+    /**
+     * Computes the checksum of {@link #contents}, unless it is already known.
+     */
+    void computeChecksum() {
+        if(isDirectory() || hasChecksum) return;
+        checksum = contents == null ? 0 : Utils.crc32c(contents);
+        hasChecksum = true;
+    }
+
+    /**
+     * @return The number of bytes the entry occupies in a file table with the given flags.
+     */
+    int encodedSize(int flags) {
+        int size = 1 + ((flags & FLAG_PARENTS) != 0 ? 8 + name.length : 4 + path.length);
+        if(isDirectory()) return size;
+        if((flags & BlockLayout.FLAG_BLOCKS) != 0) {
+            size += 8 + 4 + 8 * extents.length;
+        } else {
+            size += 16;
+        }
+        if((flags & FLAG_CODECS) != 0) size += 9;
+        if((flags & FLAG_CHECKSUMS) != 0) size += 4;
+        return size;
+    }
+
+    void write(ByteBuffer mft, int flags) {
+        mft.put(type);
+        if(!isDirectory()) {
+            if((flags & BlockLayout.FLAG_BLOCKS) == 0) mft.putLong(offset);
+            mft.putLong(size);
+            if((flags & FLAG_CODECS) != 0) {
+                mft.put(codec);
+                mft.putLong(storedSize);
+            }
+            if((flags & FLAG_CHECKSUMS) != 0) mft.putInt(checksum);
+            if((flags & BlockLayout.FLAG_BLOCKS) != 0) {
+                mft.putInt(extents.length / 2);
+                for(long l : extents) {
+                    mft.putLong(l);
+                }
+            }
+        }
+        if((flags & FLAG_PARENTS) != 0) {
+            mft.putInt(parent);
+            mft.putInt(name.length);
+            mft.put(name);
+        } else {
+            mft.putInt(path.length);
+            mft.put(path);
+        }
+    }
+
+    static FileTableEntry read(ByteBuffer mft, int flags) {
+        byte type = mft.get() == DIRECTORY ? DIRECTORY : FILE;
+        long offset = 0, size = 0, storedSize = 0;
+        byte codec = Codec.NONE;
+        long[] extents = null;
+        int checksum = 0;
+        if(type == FILE) {
+            if((flags & BlockLayout.FLAG_BLOCKS) == 0) offset = mft.getLong();
+            size = storedSize = mft.getLong();
+            if((flags & FLAG_CODECS) != 0) {
+                codec = mft.get();
+                storedSize = mft.getLong();
+            }
+            if((flags & FLAG_CHECKSUMS) != 0) checksum = mft.getInt();
+            if((flags & BlockLayout.FLAG_BLOCKS) != 0) {
+                extents = new long[mft.getInt() * 2];
+                for(int i = 0; i < extents.length; i++) {
+                    extents[i] = mft.getLong();
+                }
+            }
+        }
+        int parent = (flags & FLAG_PARENTS) != 0 ? mft.getInt() : -1;
+        byte[] bytes = new byte[mft.getInt()];
+        mft.get(bytes);
+        FileTableEntry entry = (flags & FLAG_PARENTS) != 0 ? new FileTableEntry(type, bytes, null)
+                : new FileTableEntry(type, null, bytes);
+        entry.parent = parent;
+        entry.offset = offset;
+        entry.size = size;
+        entry.codec = codec;
+        entry.storedSize = storedSize;
+        entry.extents = extents;
+        entry.checksum = checksum;
+        entry.hasChecksum = type == FILE && (flags & FLAG_CHECKSUMS) != 0;
+        return entry;
+    }
+
+    /**
+     * Reads every entry of a file table and checks that the entries are
+     * consistent with each other.
+     * @throws IOException If the table is truncated, an entry refers to a parent
+     *                     that is not a preceding directory, or a file has an
+     *                     invalid size or codec
+     */
+    static List<FileTableEntry> readAll(ByteBuffer mft, int flags) throws IOException {
+        List<FileTableEntry> entries = new ArrayList<>();
+        try {
+            while(mft.hasRemaining()) {
+                FileTableEntry entry = read(mft, flags);
+                int index = entries.size();
+                if(entry.name != null && (entry.name.length == 0 || new String(entry.name).contains("/"))) {
+                    throw new IOException("Invalid name in file table entry " + index);
+                }
+                if(entry.parent >= index || (entry.parent >= 0 && !entries.get(entry.parent).isDirectory())) {
+                    throw new IOException("Invalid parent in file table entry " + index + ": " + entry.parent);
+                }
+                if(!entry.isDirectory() && (entry.size < 0 || entry.storedSize < 0 || entry.offset < 0
+                        || entry.codec < Codec.NONE || entry.codec > Codec.LZ)) {
+                    throw new IOException("Invalid file in file table entry " + index);
+                }
+                entries.add(entry);
+            }
+        } catch(BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Truncated file table", e);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,259 @@
+package cs3410.project.filesystem;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the mutations made to a file system since it was last written in
+ * full so that they can be appended to the end of the container instead of
+ * rewriting it.
+ * <br><br>
+ * Each record in the journal consists of eight bytes denoting the size of the
+ * rest of the record, a byte denoting the type of the record, the size and
+ * bytes of the path of the object the record applies to, and a payload. For
+ * example, a record renaming <tt>/a</tt> to <tt>b</tt> would be as follows:
+ * <pre>
+ * 00 00 00 00 00 00 00 07 52 00 00 00 02 2F 61 62
+ * ^---------------------^ ^  ^---------^ ^---^ ^
+ *          size           R   path size  path  payload
+ * </pre>
+ * Journals appended to containers written before the format was versioned use
+ * four bytes for the size of each record instead.
+ * The payload of a {@link #WRITE} record is the new contents of the file and
+ * the payload of a {@link #RENAME} record is the new name of the object.
+ * Other records have no payload.
+ *
+ * @see FileSystem#writeContainer()
+ */
+public class Journal {
+    public static final byte CREATE_DIRECTORY = 0x44;
+    public static final byte CREATE_FILE = 0x46;
+    public static final byte WRITE = 0x57;
+    public static final byte RENAME = 0x52;
+    public static final byte DELETE = 0x58;
+
+    private final List<Record> pending = new ArrayList<>();
+    /**
+     * The pending {@link #WRITE} record of each file. Only the most recent write
+     * to a file needs to be saved, so earlier ones are discarded.
+     */
+    private final Map<FSFile, Record> pendingWrites = new HashMap<>();
+
+    /**
+     * Encodes paths the same way as {@link String#getBytes()}, into {@link #scratch}.
+     */
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    private static class Record {
+        final byte type;
+        final byte[] path;
+        final byte[] payload;
+        /**
+         * The file whose contents are the payload of a {@link #WRITE} record.
+         * The contents are only read when the record is appended.
+         */
+        final FSFile file;
+        boolean discarded = false;
+
+        Record(byte type, byte[] path, byte[] payload, FSFile file) {
+            this.type = type;
+            this.path = path;
+            this.payload = payload;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Records the creation of <tt>obj</tt>, along with any descendants it already has.
+     */
+    public void created(FileSystemObject obj) {
+        if(obj.isDirectory()) {
+            pending.add(new Record(CREATE_DIRECTORY, pathOf(obj), null, null));
+            for(FileSystemObject child : ((FSDirectory) obj).children) {
+                created(child);
+            }
+        } else {
+            pending.add(new Record(CREATE_FILE, pathOf(obj), null, null));
+            if(((FSFile) obj).getSize() > 0) written((FSFile) obj);
+        }
+    }
+
+    /**
+     * Records that the contents of <tt>file</tt> have been replaced.
+     */
+    public void written(FSFile file) {
+        Record previous = pendingWrites.get(file);
+        if(previous != null) previous.discarded = true;
+        Record record = new Record(WRITE, pathOf(file), null, file);
+        pending.add(record);
+        pendingWrites.put(file, record);
+    }
+
+    /**
+     * Records that the object at <tt>oldPath</tt> has been renamed to <tt>obj.name</tt>.
+     */
+    public void renamed(FileSystemObject obj, String oldPath) {
+        pending.add(new Record(RENAME, oldPath.getBytes(), obj.name.getBytes(), null));
+    }
+
+    /**
+     * Records the deletion of <tt>obj</tt> and its descendants.
+     */
+    public void deleted(FileSystemObject obj) {
+        pending.add(new Record(DELETE, pathOf(obj), null, null));
+    }
+
+    /**
+     * @return The encoded absolute path of <tt>obj</tt>, written straight from
+     *         the names of its ancestors unless it is cached.
+     */
+    private byte[] pathOf(FileSystemObject obj) {
+        while(true) {
+            scratch.clear();
+            try {
+                obj.writePath(scratch, encoder);
+                return Arrays.copyOf(scratch.array(), scratch.position());
+            } catch(BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * @return Whether any mutations have been recorded since the journal was last cleared.
+     */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Discards all pending records.
+     */
+    public void clear() {
+        pending.clear();
+        pendingWrites.clear();
+    }
+
+    /**
+     * Writes all pending records to <tt>channel</tt> starting at <tt>position</tt>
+     * and clears the journal.
+     * @param linked Receives the position within <tt>channel</tt> of the
+     *               contents of each file that were linked to an external file
+     *               when they were written
+     * @return The number of bytes written
+     * @throws IOException
+     * @see FSFile#link(ByteBuffer[], byte[])
+     */
+    public long append(FileChannel channel, long position, Map<FSFile, Long> linked) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        long size = 0;
+        for(Record record : pending) {
+            if(record.discarded) continue;
+            ByteBuffer[] payload = null;
+            if(record.file != null) {
+                payload = record.file.getBuffers();
+                if(record.file.isLinked()) linked.put(record.file, position + size + 13 + record.path.length);
+            } else if(record.payload != null) {
+                payload = new ByteBuffer[] { ByteBuffer.wrap(record.payload) };
+            }
+            long payloadSize = Utils.remaining(payload);
+            ByteBuffer header = ByteBuffer.allocate(13 + record.path.length);
+            header.putLong(5L + record.path.length + payloadSize);
+            header.put(record.type);
+            header.putInt(record.path.length);
+            header.put(record.path);
+            header.flip();
+            buffers.add(header);
+            size += header.remaining();
+            if(payload != null) {
+                buffers.addAll(Arrays.asList(payload));
+                size += payloadSize;
+            }
+        }
+        channel.position(position);
+        Utils.writeFully(channel, buffers.toArray(new ByteBuffer[0]));
+        channel.force(false);
+        clear();
+        return size;
+    }
+
+    /**
+     * Applies the records in <tt>log</tt> to <tt>fs</tt>. Records referring to
+     * objects that do not exist are ignored. If the last record is incomplete,
+     * for example because the program exited while it was being written, it is
+     * ignored as well.
+     * @param wide Whether the size of each record is stored in eight bytes rather than four
+     * @return The number of bytes occupied by complete records
+     */
+    public static long replay(FileSystem fs, ByteBuffer log, boolean wide) {
+        while(log.remaining() >= (wide ? 8 : 4)) {
+            int start = log.position();
+            long size = wide ? log.getLong() : log.getInt();
+            if(size < 5 || size > log.remaining()) {
+                log.position(start);
+                break;
+            }
+            byte type = log.get();
+            int pathLength = log.getInt();
+            if(pathLength < 0 || pathLength > size - 5) {
+                log.position(start);
+                break;
+            }
+            byte[] pathBytes = new byte[pathLength];
+            log.get(pathBytes);
+            String path = new String(pathBytes);
+            int payloadSize = (int) (size - 5 - pathBytes.length);
+            ByteBuffer payload = log.slice(log.position(), payloadSize);
+            log.position(log.position() + payloadSize);
+            apply(fs, type, path, payload);
+        }
+        return log.position();
+    }
+
+    private static void apply(FileSystem fs, byte type, String path, ByteBuffer payload) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        switch(type) {
+        case CREATE_DIRECTORY: {
+            FSDirectory parent = fs.getParent(path);
+            if(parent != null) fs.newDirectory(parent, name);
+            break;
+        }
+        case CREATE_FILE: {
+            FSDirectory parent = fs.getParent(path);
+            if(parent != null) fs.newFile(parent, name);
+            break;
+        }
+        case WRITE: {
+            FileSystemObject obj = fs.getObject(path);
+            if(obj != null && !obj.isDirectory()) ((FSFile) obj).map(payload);
+            break;
+        }
+        case RENAME: {
+            FileSystemObject obj = fs.getObject(path);
+            byte[] newName = new byte[payload.remaining()];
+            payload.get(newName);
+            if(obj != null) obj.rename(new String(newName));
+            break;
+        }
+        case DELETE: {
+            FileSystemObject obj = fs.getObject(path);
+            if(obj != null && !obj.isRoot()) obj.parent.children.remove(obj);
+            break;
+        }
+        default:
+            break;
+        }
+    }
+}
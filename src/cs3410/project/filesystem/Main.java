@@ -2,7 +2,7 @@ package cs3410.project.filesystem;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.List;
 
 import cs3410.project.filesystem.gui.BrowserFrame;
 
@@ -15,7 +15,9 @@ public class Main {
         String toCopyDestination = "";
         String toExtract = "";
         String toExtractDestination = "";
-        boolean forceExtract = false, printBeforeExit = false;
+        long memoryBudget = -1;
+        boolean forceExtract = false, printBeforeExit = false, journal = false, upgrade = false,
+                blockLayout = false, noCompression = false, scrub = false, archive = false;
         if(args.length > 0) {
             // Parse command line arguments
             try {
@@ -28,23 +30,19 @@ public class Main {
                         }
                         container = file;
                     }
-                    // Copy an external file into the file system
+                    // Copy an external file or directory into the file system
                     if(args[i].equals("-c")) {
                         File file = new File(args[i + 1]);
                         if(!file.exists()) {
                             throw new RuntimeException("File does not exist: " + file.getAbsolutePath());
                         }
-                        if(file.isDirectory()) {
-                            // TODO
-                            throw new RuntimeException("Unimplemented");
-                        }
                         toCopy = file;
                     }
                     // Set the internal destination path of the external file
                     if(args[i].equals("-d")) {
                         toCopyDestination = args[i + 1];
                     }
-                    // Extract an internal file to the external file system
+                    // Extract an internal file or directory to the external file system
                     if(args[i].equals("-C")) {
                         toExtract = args[i + 1];
                     }
@@ -60,6 +58,34 @@ public class Main {
                     if(args[i].equals("-p")) {
                         printBeforeExit = true;
                     }
+                    // Append changes to the container's journal instead of rewriting it
+                    if(args[i].equals("-j")) {
+                        journal = true;
+                    }
+                    // Rewrite the container in the current format
+                    if(args[i].equals("-u")) {
+                        upgrade = true;
+                    }
+                    // Store the container in fixed-size blocks
+                    if(args[i].equals("-b")) {
+                        blockLayout = true;
+                    }
+                    // Limit the memory used to hold the contents of files, in megabytes
+                    if(args[i].equals("-m")) {
+                        memoryBudget = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                    }
+                    // Check the contents of every file against their checksums
+                    if(args[i].equals("-s")) {
+                        scrub = true;
+                    }
+                    // Store the contents of files without compressing them
+                    if(args[i].equals("-n")) {
+                        noCompression = true;
+                    }
+                    // Import the entries of the archive given to -c, or extract the directory given to -C to an archive
+                    if(args[i].equals("-a")) {
+                        archive = true;
+                    }
                 }
             } catch(ArrayIndexOutOfBoundsException e) {
                 System.err.println("Invalid arguments: " + String.join(" ", args));
@@ -78,12 +104,32 @@ public class Main {
             try {
                 FileSystem.load(container);
             } catch(IOException e) {
-                e.printStackTrace();
+                // Saving a partially loaded file system would overwrite the container
+                System.err.println("Could not read container: " + e.getMessage());
+                System.exit(1);
             }
+            if(journal) fs.journaling = true;
+            if(blockLayout) fs.blockLayout = true;
+            if(noCompression) fs.compression = false;
+            if(memoryBudget >= 0) fs.bufferPool.setCapacity(memoryBudget);
 
+            if(scrub) {
+                try {
+                    List<String> corrupt = fs.verify();
+                    for(String path : corrupt) {
+                        System.err.println("Corrupt: " + path);
+                    }
+                    System.out.println(corrupt.size() + " corrupt file(s) found");
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
             if(toCopy != null) {
                 try {
-                    if(!fs.importFile(toCopy, toCopyDestination)) {
+                    if(archive) {
+                        System.out.println(fs.importArchive(toCopy, toCopyDestination) + " file(s) imported");
+                    } else if(!(toCopy.isDirectory() ? fs.importDirectory(toCopy, toCopyDestination)
+                            : fs.importFile(toCopy, toCopyDestination))) {
                         System.err.println("File already exists at destination: " + toCopyDestination);
                     }
                 } catch(IOException e) {
@@ -95,25 +141,37 @@ public class Main {
                 if(file == null) {
                     throw new RuntimeException("File does not exist: " + toExtract);
                 }
-                if(file.isDirectory()) {
-                    // TODO
-                    throw new RuntimeException("Unimplemented");
-                }
                 File out = new File(toExtractDestination);
                 if(out.exists() && !forceExtract) {
                     System.err.println("File already exists: " + out.getAbsolutePath()
                             + "\nRun again with the -f flag to overwrite");
-                } else if(out.exists() && out.isDirectory()) {
-                    System.err.println("Destination is a directory: " + out.getAbsolutePath());
+                } else if(archive) {
+                    try {
+                        if(!file.isDirectory()) {
+                            System.err.println("Not a directory: " + toExtract);
+                        } else if(!fs.exportArchive((FSDirectory) file, out, true)) {
+                            System.err.println("Destination is a directory: " + out.getAbsolutePath());
+                        }
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                } else if(out.exists() && out.isDirectory() != file.isDirectory()) {
+                    System.err.println((file.isDirectory() ? "Destination is a file: " : "Destination is a directory: ")
+                            + out.getAbsolutePath());
                 } else {
                     try {
-                        Files.write(out.toPath(), ((FSFile) file).data);
+                        if(file.isDirectory()) {
+                            fs.exportDirectory((FSDirectory) file, out, true);
+                        } else {
+                            fs.exportFile((FSFile) file, out, true);
+                        }
                     } catch(IOException e) {
                         e.printStackTrace();
                     }
                 }
             }
             try {
+                if(upgrade) fs.upgrade();
                 fs.writeContainer();
             } catch(IOException e) {
                 e.printStackTrace();
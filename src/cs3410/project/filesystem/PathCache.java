@@ -0,0 +1,194 @@
+package cs3410.project.filesystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Remembers the objects found at recently resolved absolute paths, so that
+ * looking up the same path again does not walk the tree from the root.
+ * <br>
+ * A lookup that is answered by the cache is a single map lookup. To keep the
+ * entries correct, the file system removes the entries at and beneath a path
+ * whenever the object at that path is renamed, deleted, or moved, including
+ * while it is being loaded or replayed. The least recently used entries are
+ * evicted once the cache holds more than its capacity.
+ * <br>
+ * Like the rest of the file system, the cache is not thread-safe.
+ *
+ * @see FileSystem#getObject(String)
+ */
+public class PathCache {
+    private int capacity;
+    /**
+     * If true, the time taken by each lookup is measured, which is reported by
+     * {@link #getAverageHitTime()} and {@link #getAverageMissTime()}.
+     */
+    public boolean timing = false;
+    private long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+    private long timedHits = 0, timedMisses = 0, hitTime = 0, missTime = 0;
+    private final LinkedHashMap<String, FileSystemObject> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileSystemObject> eldest) {
+            if(size() <= capacity) return false;
+            paths.remove(eldest.getKey());
+            evictions++;
+            return true;
+        }
+    };
+    /**
+     * The cached paths in order, so that the paths beneath a directory can be
+     * found without looking at the others.
+     */
+    private final TreeSet<String> paths = new TreeSet<>();
+
+    /**
+     * @param capacity The number of paths that may be cached
+     */
+    public PathCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return The object cached at <tt>path</tt>, or <tt>null</tt> if there is none.
+     */
+    FileSystemObject get(String path) {
+        FileSystemObject obj = entries.get(path);
+        if(obj != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return obj;
+    }
+
+    void put(String path, FileSystemObject obj) {
+        if(capacity <= 0) return;
+        if(entries.put(path, obj) == null) paths.add(path);
+    }
+
+    /**
+     * Removes the entries at <tt>path</tt> and beneath it.
+     */
+    void invalidate(String path) {
+        if(entries.isEmpty()) return;
+        if(entries.remove(path) != null) {
+            paths.remove(path);
+            invalidations++;
+        }
+        // Every path beneath the directory sorts between "path/" and "path0"
+        SortedSet<String> beneath = paths.subSet(path + '/', path + '0');
+        for(String descendant : beneath) {
+            entries.remove(descendant);
+            invalidations++;
+        }
+        beneath.clear();
+    }
+
+    /**
+     * Records the time taken by a lookup, if {@link #timing} is enabled.
+     * @param hit Whether the object was found in the cache
+     */
+    void record(boolean hit, long nanos) {
+        if(hit) {
+            timedHits++;
+            hitTime += nanos;
+        } else {
+            timedMisses++;
+            missTime += nanos;
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        entries.clear();
+        paths.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the number of paths that may be cached, evicting entries if it has shrunk.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        Iterator<Map.Entry<String, FileSystemObject>> iterator = entries.entrySet().iterator();
+        while(entries.size() > capacity && iterator.hasNext()) {
+            paths.remove(iterator.next().getKey());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return The number of paths currently cached.
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of lookups that were answered by the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that had to walk the tree.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries discarded to stay within the capacity.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of entries discarded because their object had been
+     *         renamed, deleted, or moved.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return The fraction of lookups that were answered by the cache.
+     */
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return The average time taken by lookups answered by the cache, in
+     *         nanoseconds, while {@link #timing} was enabled.
+     */
+    public double getAverageHitTime() {
+        return timedHits == 0 ? 0 : (double) hitTime / timedHits;
+    }
+
+    /**
+     * @return The average time taken by lookups that walked the tree, in
+     *         nanoseconds, while {@link #timing} was enabled.
+     */
+    public double getAverageMissTime() {
+        return timedMisses == 0 ? 0 : (double) missTime / timedMisses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d / %d paths, %d hits (%.0f ns), %d misses (%.0f ns), %d evictions, %d invalidations",
+                entries.size(), capacity, hits, getAverageHitTime(), misses, getAverageMissTime(), evictions,
+                invalidations);
+    }
+}
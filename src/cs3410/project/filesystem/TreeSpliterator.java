@@ -0,0 +1,139 @@
+package cs3410.project.filesystem;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Visits a directory and everything beneath it in the same order as
+ * {@link FileSystem#traverse(FSDirectory, FSAction)}: each directory is
+ * followed by its children in order of their names, and each child directory
+ * by its own children before its next sibling.
+ * <br>
+ * The directories being visited are kept on an explicit stack rather than the
+ * call stack, so trees of any depth can be visited. Splitting hands half of
+ * the unvisited children of the shallowest directory that has at least two
+ * of them to a new spliterator, so parallel streams divide the work between
+ * whole subtrees.
+ * <br>
+ * The children of each directory are those it held when it was reached, as
+ * with the iterators of a {@link FileSet}.
+ *
+ * @see FileSystem#walk(FSDirectory, int, Predicate)
+ */
+class TreeSpliterator implements Spliterator<FileSystemObject> {
+    private final int maxDepth;
+    private final Predicate<? super FileSystemObject> descend;
+    /**
+     * For each directory being visited, the objects it held when it was
+     * reached, the range of them that are still to be visited, and the
+     * depth of those objects, from the shallowest directory to the deepest.
+     */
+    private FileSystemObject[][] objects;
+    private int[] index, end, depth;
+    private int top = -1;
+    /**
+     * The number of objects still to be visited, assuming that every directory
+     * is descended into.
+     */
+    private long estimate;
+
+    /**
+     * @param maxDepth The depth below <tt>root</tt> beyond which objects are not
+     *                 visited, where the children of <tt>root</tt> are at depth 1
+     * @param descend  Whether the children of a directory should be visited.
+     *                 The directory itself is visited either way.
+     */
+    TreeSpliterator(FSDirectory root, int maxDepth, Predicate<? super FileSystemObject> descend) {
+        this(maxDepth, descend, 4);
+        push(new FileSystemObject[] { root }, 0, 1, 0);
+        estimate = root.getDescendantCount() + 1;
+    }
+
+    private TreeSpliterator(int maxDepth, Predicate<? super FileSystemObject> descend, int capacity) {
+        this.maxDepth = maxDepth;
+        this.descend = descend;
+        objects = new FileSystemObject[capacity][];
+        index = new int[capacity];
+        end = new int[capacity];
+        depth = new int[capacity];
+    }
+
+    private void push(FileSystemObject[] objects, int index, int end, int depth) {
+        if(++top == this.objects.length) {
+            int capacity = top * 2;
+            this.objects = Arrays.copyOf(this.objects, capacity);
+            this.index = Arrays.copyOf(this.index, capacity);
+            this.end = Arrays.copyOf(this.end, capacity);
+            this.depth = Arrays.copyOf(this.depth, capacity);
+        }
+        this.objects[top] = objects;
+        this.index[top] = index;
+        this.end[top] = end;
+        this.depth[top] = depth;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super FileSystemObject> action) {
+        while(top >= 0 && index[top] == end[top]) {
+            objects[top--] = null;
+        }
+        if(top < 0) return false;
+        FileSystemObject obj = objects[top][index[top]++];
+        if(estimate > 0) estimate--;
+        if(obj.isDirectory() && depth[top] < maxDepth && descend.test(obj)) {
+            FileSet children = ((FSDirectory) obj).children;
+            int size = children.size();
+            if(size > 0) push(children.snapshot(), 0, size, depth[top] + 1);
+        }
+        action.accept(obj);
+        return true;
+    }
+
+    /**
+     * Splits off the objects up to the middle of the unvisited children of
+     * the shallowest directory that has at least two of them, along with the
+     * subtree currently being visited beneath that directory.
+     */
+    @Override
+    public Spliterator<FileSystemObject> trySplit() {
+        int level = 0;
+        while(level <= top && end[level] - index[level] < 2) {
+            level++;
+        }
+        if(level > top) return null;
+        int mid = (index[level] + end[level]) >>> 1;
+        TreeSpliterator prefix = new TreeSpliterator(maxDepth, descend, Math.max(4, top - level + 1));
+        prefix.push(objects[level], index[level], mid, depth[level]);
+        for(int i = level + 1; i <= top; i++) {
+            prefix.push(objects[i], index[i], end[i], depth[i]);
+            objects[i] = null;
+        }
+        index[level] = mid;
+        top = level;
+        long remaining = 0;
+        for(int i = 0; i <= top; i++) {
+            for(int j = index[i]; j < end[i]; j++) {
+                remaining += weight(objects[i][j]);
+            }
+        }
+        prefix.estimate = Math.max(0, estimate - remaining);
+        estimate = remaining;
+        return prefix;
+    }
+
+    private static long weight(FileSystemObject obj) {
+        return obj.isDirectory() ? ((FSDirectory) obj).getDescendantCount() + 1 : 1;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+}
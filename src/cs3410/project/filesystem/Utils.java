@@ -1,6 +1,11 @@
 package cs3410.project.filesystem;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.text.DecimalFormat;
+import java.util.zip.CRC32C;
 
 public class Utils {
     private static final DecimalFormat SIZE_FORMAT = new DecimalFormat("#.00");
@@ -48,13 +53,152 @@ public class Utils {
         return b;
     }
 
+    /**
+     * @param array An array of up to 8 bytes representing a <tt>long</tt>
+     * @return The long represented by the byte array
+     * @throws RuntimeException If the number of bytes in <tt>array</tt> is larger
+     *         than the number of bytes in a long
+     */
+    public static long bytesToLong(byte[] array) {
+        if(array.length > Long.BYTES) throw new RuntimeException(
+                String.format("Byte array too large for long (%d > %d)", array.length, Long.BYTES));
+        long l = 0;
+        for(byte b : array) {
+            l = (l << 8) + (b & 0xFF);
+        }
+        return l;
+    }
+
+    /**
+     * @return The bytes that make up the given long
+     */
+    public static byte[] longToBytes(long n) {
+        byte[] b = new byte[8];
+        for(int i = 0; i < 8; i++) {
+            b[i] = (byte) (n >>> (56 - i * 8));
+        }
+        return b;
+    }
+
+    /**
+     * Writes the remaining contents of every buffer to <tt>channel</tt>, in order.
+     * A single gathering write may be cut short by the operating system, so the
+     * write is repeated until every buffer has been drained.
+     * @throws IOException
+     */
+    public static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        int i = 0;
+        while(i < buffers.length) {
+            // Most platforms limit the number of buffers in a single gathering write
+            channel.write(buffers, i, Math.min(buffers.length - i, 1024));
+            while(i < buffers.length && !buffers[i].hasRemaining()) i++;
+        }
+    }
+
+    /**
+     * @return A stream that reads the remaining contents of the given buffers,
+     * in order, without copying them. The positions of the buffers are not changed.
+     */
+    public static InputStream newInputStream(ByteBuffer... buffers) {
+        ByteBuffer[] contents = new ByteBuffer[buffers.length];
+        for(int i = 0; i < buffers.length; i++) {
+            contents[i] = buffers[i].duplicate();
+        }
+        return new InputStream() {
+            private int index = 0;
+
+            /**
+             * @return The buffer being read, or <tt>null</tt> at the end of the stream.
+             */
+            private ByteBuffer current() {
+                while(index < contents.length && !contents[index].hasRemaining()) index++;
+                return index < contents.length ? contents[index] : null;
+            }
+
+            @Override
+            public int read() {
+                ByteBuffer current = current();
+                return current == null ? -1 : current.get() & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(len == 0) return 0;
+                ByteBuffer current = current();
+                if(current == null) return -1;
+                len = Math.min(len, current.remaining());
+                current.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = 0;
+                ByteBuffer current;
+                while(skipped < n && (current = current()) != null) {
+                    int step = (int) Math.min(n - skipped, current.remaining());
+                    current.position(current.position() + step);
+                    skipped += step;
+                }
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                ByteBuffer current = current();
+                return current == null ? 0 : current.remaining();
+            }
+        };
+    }
+
+    /**
+     * @return The total number of bytes remaining in the given buffers, or 0 if
+     * <tt>buffers</tt> is <tt>null</tt>.
+     */
+    public static long remaining(ByteBuffer[] buffers) {
+        if(buffers == null) return 0;
+        long size = 0;
+        for(ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * @return A single buffer holding the remaining contents of the given
+     * buffers. If there is only one buffer, it is returned as it is.
+     * @throws RuntimeException If the contents are too large for a single buffer
+     */
+    public static ByteBuffer concat(ByteBuffer[] buffers) {
+        if(buffers.length == 1) return buffers[0];
+        long size = remaining(buffers);
+        if(size > FSFile.MAX_ARRAY_SIZE) throw new RuntimeException("Contents too large for a single buffer: " + size);
+        ByteBuffer result = ByteBuffer.allocate((int) size);
+        for(ByteBuffer buffer : buffers) {
+            result.put(buffer.duplicate());
+        }
+        return result.flip();
+    }
+
+    /**
+     * @return The CRC32C checksum of the remaining contents of the given buffers,
+     * taken in order. The positions of the buffers are not changed.
+     */
+    public static int crc32c(ByteBuffer... buffers) {
+        CRC32C crc = new CRC32C();
+        for(ByteBuffer buffer : buffers) {
+            crc.update(buffer.duplicate());
+        }
+        return (int) crc.getValue();
+    }
+
     /**
      * @return The given integer as a human-readable string using SI prefixes,
      * rounded to two decimal places.
      * <br>
      * For example, <tt>humanReadableSize(1234567)</tt> would return <tt>1.23 MB</tt>.
      */
-    public static String humanReadableSize(int bytes) {
+    public static String humanReadableSize(long bytes) {
         double b = (double) bytes;
         int magnitude = 0;
         while(b > 1000) {
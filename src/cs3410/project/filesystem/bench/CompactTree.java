@@ -0,0 +1,416 @@
+package cs3410.project.filesystem.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cs3410.project.filesystem.FSDirectory;
+import cs3410.project.filesystem.FileSystemObject;
+
+/**
+ * A read-only snapshot of a directory tree held in a handful of primitive
+ * arrays instead of one object per file and directory, for trees too large to
+ * keep in memory as {@link FileSystemObject}s.
+ * <br>
+ * Nodes are numbered breadth-first from the root, which is node 0, so the
+ * children of each directory are numbered consecutively, in the unsigned
+ * order of their UTF-8 names, and the children of consecutive nodes follow
+ * each other. Each node takes 20 bytes and one bit, plus the bytes of its
+ * name:
+ * <ul>
+ * <li>the index of its parent,</li>
+ * <li>the index of its first child, the children of node <tt>i</tt> ending
+ * where those of node <tt>i + 1</tt> begin,</li>
+ * <li>the offset of its name in an arena shared by all names, the name of
+ * node <tt>i</tt> ending where that of node <tt>i + 1</tt> begins,</li>
+ * <li>the size of the file, or the total size of the files beneath the
+ * directory,</li>
+ * <li>and whether it is a directory.</li>
+ * </ul>
+ * Nodes are accessed through {@link Node}s, which are created on demand and
+ * hold nothing but their index. They mirror the read-only part of the API of
+ * <tt>FileSystemObject</tt>, but they are not <tt>FileSystemObject</tt>s, so
+ * the file system itself cannot be backed by a compact tree. The class is only
+ * used to measure how much memory such a backend could save.
+ *
+ * @see #of(FSDirectory)
+ * @see TreeFootprintBenchmark
+ */
+public class CompactTree {
+    /**
+     * The largest array that can be allocated on most virtual machines.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private final int count;
+    private final int[] parents;
+    /**
+     * The index of the first child of each node, followed by the number of nodes.
+     */
+    private final int[] children;
+    /**
+     * The offset of the name of each node in {@link #names}, followed by the
+     * length of the arena.
+     */
+    private final int[] nameOffsets;
+    private final byte[] names;
+    private final long[] sizes;
+    /**
+     * A bitmap of the nodes that are directories.
+     */
+    private final long[] directories;
+
+    private CompactTree(int count, int[] parents, int[] children, int[] nameOffsets, byte[] names, long[] sizes,
+            long[] directories) {
+        this.count = count;
+        this.parents = parents;
+        this.children = children;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+        this.sizes = sizes;
+        this.directories = directories;
+    }
+
+    /**
+     * @return A snapshot of <tt>dir</tt> and everything beneath it, with
+     *         <tt>dir</tt> as the root.
+     */
+    public static CompactTree of(FSDirectory dir) {
+        Builder builder = new Builder();
+        // Directories are visited from an explicit stack, so trees of any depth can be captured
+        List<FSDirectory> directories = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        directories.add(dir);
+        indices.add(-1);
+        while(!directories.isEmpty()) {
+            FSDirectory directory = directories.remove(directories.size() - 1);
+            int parent = indices.remove(indices.size() - 1);
+            for(int i = 0; i < directory.children.size(); i++) {
+                FileSystemObject child = directory.children.get(i);
+                int index = builder.add(parent, child.name.getBytes(StandardCharsets.UTF_8), child.isDirectory(),
+                        child.isDirectory() ? 0 : child.getSize());
+                if(child.isDirectory()) {
+                    directories.add((FSDirectory) child);
+                    indices.add(index);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects nodes in any order in which each parent precedes its children,
+     * and then renumbers them breadth-first.
+     */
+    private static class Builder {
+        int count = 0;
+        int[] parents = new int[16];
+        int[] nameOffsets = new int[17];
+        byte[] names = new byte[256];
+        long[] sizes = new long[16];
+        long[] directories = new long[1];
+
+        /**
+         * @param parent The index of the parent returned by a previous call, or -1 for the root
+         * @return The index of the node
+         */
+        int add(int parent, byte[] name, boolean directory, long size) {
+            if(count == parents.length) {
+                if(count == Integer.MAX_VALUE - 1) throw new RuntimeException("Too many entries for a compact tree");
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 1, count * 2L);
+                parents = Arrays.copyOf(parents, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                sizes = Arrays.copyOf(sizes, capacity);
+                directories = Arrays.copyOf(directories, (capacity + 63) / 64);
+            }
+            int offset = nameOffsets[count];
+            if((long) offset + name.length > MAX_ARRAY_SIZE) {
+                throw new RuntimeException("Names too large for a compact tree");
+            }
+            if(offset + name.length > names.length) {
+                names = Arrays.copyOf(names, (int) Math.min(MAX_ARRAY_SIZE,
+                        Math.max(offset + name.length, names.length * 2L)));
+            }
+            System.arraycopy(name, 0, names, offset, name.length);
+            nameOffsets[count + 1] = offset + name.length;
+            parents[count] = parent;
+            sizes[count] = size;
+            if(directory) directories[count >> 6] |= 1L << count;
+            return count++;
+        }
+
+        boolean isDirectory(int index) {
+            return (directories[index >> 6] & (1L << index)) != 0;
+        }
+
+        /**
+         * Renumbers the nodes breadth-first, with the root added as node 0, and
+         * adds the size of each file to the directories above it.
+         */
+        CompactTree build() {
+            int n = count + 1;
+            // Slot 0 is the root and slot i + 1 is the node added as i
+            int[] groupStart = new int[n + 1];
+            for(int i = 0; i < count; i++) {
+                groupStart[parents[i] + 2]++;
+            }
+            for(int i = 0; i < n; i++) {
+                groupStart[i + 1] += groupStart[i];
+            }
+            int[] grouped = new int[count];
+            int[] next = Arrays.copyOf(groupStart, n);
+            for(int i = 0; i < count; i++) {
+                grouped[next[parents[i] + 1]++] = i + 1;
+            }
+            next = null;
+            int[] scratch = new int[count];
+            for(int slot = 0; slot < n; slot++) {
+                sortByName(grouped, scratch, groupStart[slot], groupStart[slot + 1]);
+            }
+            scratch = null;
+            int[] order = new int[n];
+            int[] indices = new int[n];
+            int[] children = new int[n + 1];
+            int tail = 1;
+            for(int i = 0; i < n; i++) {
+                int slot = order[i];
+                indices[slot] = i;
+                children[i] = tail;
+                for(int j = groupStart[slot]; j < groupStart[slot + 1]; j++) {
+                    order[tail++] = grouped[j];
+                }
+            }
+            children[n] = n;
+            grouped = null;
+            groupStart = null;
+            int[] treeParents = new int[n];
+            int[] treeNameOffsets = new int[n + 1];
+            byte[] treeNames = new byte[nameOffsets[count]];
+            long[] treeSizes = new long[n];
+            long[] treeDirectories = new long[(n + 63) / 64];
+            treeParents[0] = -1;
+            treeDirectories[0] = 1;
+            int offset = 0;
+            for(int i = 1; i < n; i++) {
+                int node = order[i] - 1;
+                treeParents[i] = indices[parents[node] + 1];
+                treeNameOffsets[i] = offset;
+                int length = nameOffsets[node + 1] - nameOffsets[node];
+                System.arraycopy(names, nameOffsets[node], treeNames, offset, length);
+                offset += length;
+                if(isDirectory(node)) {
+                    treeDirectories[i >> 6] |= 1L << i;
+                } else {
+                    treeSizes[i] = sizes[node];
+                }
+            }
+            treeNameOffsets[n] = offset;
+            // Every node is numbered after its parent, so a single pass in reverse adds up the sizes
+            for(int i = n - 1; i > 0; i--) {
+                treeSizes[treeParents[i]] += treeSizes[i];
+            }
+            return new CompactTree(n, treeParents, children, treeNameOffsets, treeNames, treeSizes, treeDirectories);
+        }
+
+        /**
+         * Sorts the slots in <tt>[from, to)</tt> by the names of their nodes with
+         * a merge sort, which needs no boxing and keeps large groups fast.
+         */
+        private void sortByName(int[] slots, int[] scratch, int from, int to) {
+            if(to - from < 2) return;
+            if(to - from <= 16) {
+                for(int i = from + 1; i < to; i++) {
+                    int slot = slots[i];
+                    int j = i;
+                    for(; j > from && compareNames(slots[j - 1], slot) > 0; j--) {
+                        slots[j] = slots[j - 1];
+                    }
+                    slots[j] = slot;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sortByName(slots, scratch, from, mid);
+            sortByName(slots, scratch, mid, to);
+            if(compareNames(slots[mid - 1], slots[mid]) <= 0) return;
+            System.arraycopy(slots, from, scratch, from, to - from);
+            int i = from, j = mid;
+            for(int k = from; k < to; k++) {
+                if(j >= to || (i < mid && compareNames(scratch[i], scratch[j]) <= 0)) {
+                    slots[k] = scratch[i++];
+                } else {
+                    slots[k] = scratch[j++];
+                }
+            }
+        }
+
+        private int compareNames(int a, int b) {
+            return Arrays.compareUnsigned(names, nameOffsets[a - 1], nameOffsets[a], names, nameOffsets[b - 1],
+                    nameOffsets[b]);
+        }
+    }
+
+    /**
+     * @return The number of nodes in the tree, including the root.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The number of bytes held by the arrays of the tree.
+     */
+    public long getMemoryUsage() {
+        return 4L * (parents.length + children.length + nameOffsets.length) + names.length + 8L * sizes.length
+                + 8L * directories.length;
+    }
+
+    public Node getRoot() {
+        return new Node(0);
+    }
+
+    /**
+     * @return The node at the given path, relative to the root of the tree,
+     *         or <tt>null</tt> if it does not exist.
+     */
+    public Node getNode(String path) {
+        int node = 0;
+        for(String name : path.split("/")) {
+            if(name.isEmpty()) continue;
+            node = find(node, name.getBytes(StandardCharsets.UTF_8));
+            if(node < 0) return null;
+        }
+        return new Node(node);
+    }
+
+    /**
+     * @return The index of the child of <tt>node</tt> with the given name, found
+     *         by binary search, or -1 if there is none.
+     */
+    private int find(int node, byte[] name) {
+        int low = children[node], high = children[node + 1] - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(names, nameOffsets[mid], nameOffsets[mid + 1], name, 0, name.length);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isDirectory(int node) {
+        return (directories[node >> 6] & (1L << node)) != 0;
+    }
+
+    /**
+     * A view of a node of a <tt>CompactTree</tt>.
+     */
+    public class Node {
+        private final int index;
+
+        private Node(int index) {
+            this.index = index;
+        }
+
+        public String getName() {
+            return new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index],
+                    StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return The path of the node relative to the root of the tree, in
+         *         the same form as {@link FileSystemObject#getPath()}.
+         */
+        public String getPath() {
+            int length = 0;
+            for(int node = index; node > 0; node = parents[node]) {
+                length += nameOffsets[node + 1] - nameOffsets[node] + 1;
+            }
+            byte[] path = new byte[length];
+            for(int node = index; node > 0; node = parents[node]) {
+                int nameLength = nameOffsets[node + 1] - nameOffsets[node];
+                length -= nameLength;
+                System.arraycopy(names, nameOffsets[node], path, length, nameLength);
+                path[--length] = '/';
+            }
+            return new String(path, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return The parent of the node, or <tt>null</tt> if it is the root.
+         */
+        public Node getParent() {
+            return index == 0 ? null : new Node(parents[index]);
+        }
+
+        public boolean isRoot() {
+            return index == 0;
+        }
+
+        public boolean isDirectory() {
+            return CompactTree.this.isDirectory(index);
+        }
+
+        /**
+         * @return The size of the file, or the total size of the files beneath
+         *         the directory.
+         */
+        public long getSize() {
+            return sizes[index];
+        }
+
+        /**
+         * @return The children of the node in order of their names, or an empty
+         *         list if it is a file. The views are created as they are accessed.
+         */
+        public List<Node> getChildren() {
+            int first = children[index], size = children[index + 1] - first;
+            return new AbstractList<Node>() {
+                @Override
+                public Node get(int i) {
+                    if(i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+                    return new Node(first + i);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        /**
+         * @return The child of the node with the given name if it exists,
+         *         otherwise <tt>null</tt>.
+         */
+        public Node getChild(String name) {
+            int child = find(index, name.getBytes(StandardCharsets.UTF_8));
+            return child < 0 ? null : new Node(child);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Node && ((Node) obj).index == index && ((Node) obj).getTree() == getTree();
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        private CompactTree getTree() {
+            return CompactTree.this;
+        }
+
+        @Override
+        public String toString() {
+            return isRoot() ? "/" : getPath();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cs3410.project.filesystem.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import cs3410.project.filesystem.FSDirectory;
+import cs3410.project.filesystem.FileSystem;
+import cs3410.project.filesystem.Main;
+import cs3410.project.filesystem.Utils;
+
+/**
+ * Measures how the time taken to read a container eagerly scales with the
+ * number of threads used to read the contents of its files.
+ * <br>
+ * Usage: <tt>LoadBenchmark [container] [runs]</tt>
+ * <br>
+ * If no container is given, a temporary container holding 1000 compressible
+ * 64 kB files is generated. The median of <tt>runs</tt> loads, 5 by default,
+ * is reported for each thread count.
+ *
+ * @see FileSystem#loadParallelism
+ */
+public class LoadBenchmark {
+    public static void main(String[] args) throws IOException {
+        File container;
+        boolean generated = args.length == 0;
+        if(generated) {
+            container = File.createTempFile("benchmark", ".fsc");
+            generate(container);
+        } else {
+            container = new File(args[0]);
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %s container%n", cores, Utils.humanReadableSize(container.length()));
+        double baseline = 0;
+        for(int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math.min(threads * 2, cores)) {
+            double ms = measure(container, threads, runs);
+            if(threads == 1) baseline = ms;
+            System.out.printf("%3d threads: %9.1f ms (%.2fx)%n", threads, ms, baseline / ms);
+        }
+        if(generated) container.delete();
+    }
+
+    /**
+     * @return The median time, in milliseconds, taken to read the container
+     *         with the given number of threads.
+     */
+    private static double measure(File container, int threads, int runs) throws IOException {
+        long[] times = new long[runs];
+        // The first load only warms up the JVM
+        for(int i = -1; i < runs; i++) {
+            FileSystem fs = new FileSystem(container);
+            fs.loadParallelism = threads;
+            fs.bufferPool.setCapacity(Long.MAX_VALUE);
+            Main.fs = fs;
+            long start = System.nanoTime();
+            fs.readContainer(false);
+            if(i >= 0) times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[runs / 2] / 1e6;
+    }
+
+    private static void generate(File container) throws IOException {
+        FileSystem.load(container);
+        Random random = new Random(0);
+        for(int i = 0; i < 10; i++) {
+            FSDirectory dir = Main.fs.newDirectory(Main.fs.root, "dir" + i);
+            for(int j = 0; j < 100; j++) {
+                byte[] data = new byte[64 * 1024];
+                for(int k = 0; k < data.length; k++) {
+                    data[k] = (byte) ('a' + random.nextInt(8));
+                }
+                Main.fs.newFile(dir, "file" + j).write(data);
+            }
+        }
+        Main.fs.writeContainer();
+    }
+}
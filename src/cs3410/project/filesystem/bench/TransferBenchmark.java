@@ -0,0 +1,109 @@
+package cs3410.project.filesystem.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import cs3410.project.filesystem.FSFile;
+import cs3410.project.filesystem.FileSystem;
+import cs3410.project.filesystem.Main;
+import cs3410.project.filesystem.Utils;
+
+/**
+ * Compares the throughput and heap usage of importing and exporting a large
+ * file through {@link FileSystem#importFile(File, String)} and
+ * {@link FileSystem#exportFile(FSFile, File, boolean)} with reading and writing
+ * its whole contents as a byte array.
+ * <br>
+ * Usage: <tt>TransferBenchmark [size in MB] [runs]</tt>
+ * <br>
+ * A temporary external file of 256 MB of random bytes is generated unless
+ * another size is given. Imports include saving the container, since mapped
+ * files are only copied when it is saved. Files are exported from a container
+ * that was read lazily, so their contents are not in memory beforehand. The
+ * median of <tt>runs</tt> transfers, 3 by default, is reported for each path,
+ * along with the heap still in use once the transfer has finished.
+ */
+public class TransferBenchmark {
+    public static void main(String[] args) throws IOException {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File external = File.createTempFile("benchmark", ".bin");
+        File exported = File.createTempFile("benchmark", ".out");
+        File container = File.createTempFile("benchmark", ".fsc");
+        generate(external, size);
+        System.out.printf("%s file, max heap %s%n", Utils.humanReadableSize(size),
+                Utils.humanReadableSize(Runtime.getRuntime().maxMemory()));
+
+        report("import (byte array)", size, runs, () -> {
+            newContainer(container);
+            Main.fs.newFile(Main.fs.root, "file").write(Files.readAllBytes(external.toPath()));
+            Main.fs.writeContainer();
+        });
+        report("import (mapped)", size, runs, () -> {
+            newContainer(container);
+            Main.fs.importFile(external, "/file");
+            Main.fs.writeContainer();
+        });
+        report("export (byte array)", size, runs, () -> {
+            FileSystem.load(container, true);
+            Files.write(exported.toPath(), ((FSFile) Main.fs.getObject("/file")).getData());
+        });
+        report("export (channel)", size, runs, () -> {
+            FileSystem.load(container, true);
+            Main.fs.exportFile((FSFile) Main.fs.getObject("/file"), exported, true);
+        });
+        Main.fs = null;
+        external.delete();
+        exported.delete();
+        container.delete();
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+    private static void newContainer(File container) throws IOException {
+        container.delete();
+        FileSystem.load(container);
+        // Random bytes do not compress, so compression would only add to the time taken to save
+        Main.fs.compression = false;
+    }
+
+    /**
+     * Prints the median time taken by <tt>transfer</tt> and the heap in use
+     * after the last run, while the file system it used is still reachable.
+     */
+    private static void report(String name, long size, int runs, Transfer transfer) throws IOException {
+        long[] times = new long[runs];
+        long heap = 0;
+        // The first transfer only warms up the JVM
+        for(int i = -1; i < runs; i++) {
+            Main.fs = null;
+            System.gc();
+            long start = System.nanoTime();
+            transfer.run();
+            if(i >= 0) times[i] = System.nanoTime() - start;
+            System.gc();
+            heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        }
+        Arrays.sort(times);
+        double ms = times[runs / 2] / 1e6;
+        System.out.printf("%-20s %9.1f ms %9.1f MB/s %12s heap%n", name, ms, size / 1e3 / ms,
+                Utils.humanReadableSize(heap));
+    }
+
+    private static void generate(File file, long size) throws IOException {
+        Random random = new Random(0);
+        byte[] block = new byte[1024 * 1024];
+        try(OutputStream out = Files.newOutputStream(file.toPath())) {
+            for(long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
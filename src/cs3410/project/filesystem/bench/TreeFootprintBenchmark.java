@@ -0,0 +1,83 @@
+package cs3410.project.filesystem.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import cs3410.project.filesystem.FSDirectory;
+import cs3410.project.filesystem.FileSystem;
+import cs3410.project.filesystem.Main;
+import cs3410.project.filesystem.Utils;
+
+/**
+ * Compares the heap taken by a large tree when it is loaded as
+ * {@link cs3410.project.filesystem.FileSystemObject}s with the heap taken by
+ * the same tree once it has been copied into a {@link CompactTree} and the
+ * objects have been released.
+ * <br>
+ * Usage: <tt>TreeFootprintBenchmark [entries]</tt>
+ * <br>
+ * A temporary container holding 1,000,000 entries is generated unless another
+ * number is given, with 100 empty files in each directory and 100 directories
+ * in each directory above those. The container is loaded lazily, so the
+ * contents of the files are not read in either case. Run with a large heap,
+ * e.g. <tt>-Xmx8g</tt> for 10,000,000 entries.
+ */
+public class TreeFootprintBenchmark {
+    private static Object retained;
+
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        File container = File.createTempFile("benchmark", ".fsc");
+        generate(container, entries);
+        System.out.printf("%,d entries, %s container%n", entries, Utils.humanReadableSize(container.length()));
+
+        long baseline = usedHeap();
+        FileSystem.load(container, true);
+        report("objects", usedHeap() - baseline, entries);
+        CompactTree tree = CompactTree.of(Main.fs.root);
+        retained = tree;
+        Main.fs = null;
+        report("compact", usedHeap() - baseline, entries);
+        System.out.printf("%-8s %10s %8.1f bytes/entry (arrays only)%n", "",
+                Utils.humanReadableSize(tree.getMemoryUsage()), (double) tree.getMemoryUsage() / entries);
+        retained = null;
+        container.delete();
+    }
+
+    private static void report(String name, long heap, int entries) {
+        System.out.printf("%-8s %10s %8.1f bytes/entry%n", name, Utils.humanReadableSize(heap),
+                (double) heap / entries);
+    }
+
+    private static long usedHeap() {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /**
+     * Writes a container holding <tt>entries</tt> files and directories, with
+     * names of the form <tt>dir123</tt> and <tt>file45.txt</tt>.
+     */
+    private static void generate(File container, int entries) throws IOException {
+        container.delete();
+        FileSystem.load(container);
+        Main.fs.compression = false;
+        int created = 0;
+        for(int i = 0; created < entries; i++) {
+            FSDirectory top = Main.fs.newDirectory(Main.fs.root, "dir" + i);
+            created++;
+            for(int j = 0; j < 100 && created < entries; j++) {
+                FSDirectory dir = Main.fs.newDirectory(top, "dir" + j);
+                created++;
+                for(int k = 0; k < 100 && created < entries; k++) {
+                    Main.fs.newFile(dir, "file" + k + ".txt");
+                    created++;
+                }
+            }
+        }
+        Main.fs.writeContainer();
+        Main.fs = null;
+    }
+}
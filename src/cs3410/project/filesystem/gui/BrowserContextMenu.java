@@ -32,12 +32,11 @@ public class BrowserContextMenu extends JPopupMenu {
                 if(newName == null || newName.isBlank()) return;
                 newName = newName.trim();
                 if(newName.equals(selected.name)) return;
-                if(browser.currentRoot.getChild(newName) != null) {
+                if(!selected.rename(newName)) {
                     JOptionPane.showMessageDialog(this,
                             String.format("An object with the name \"%s\" already exists", newName),
                             "Failed to rename file", JOptionPane.ERROR_MESSAGE);
                 } else {
-                    selected.rename(newName);
                     browser.update(browser.currentRoot);
                 }
             });
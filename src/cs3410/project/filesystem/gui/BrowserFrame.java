@@ -2,6 +2,7 @@ package cs3410.project.filesystem.gui;
 
 import java.awt.Component;
 import java.awt.Desktop;
+import java.awt.EventQueue;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Insets;
@@ -74,6 +75,10 @@ public class BrowserFrame extends JFrame {
             return "File System Containers (.fs)";
         }
     };
+    /**
+     * The number of seconds between automatic saves of the open container.
+     */
+    private static final long AUTOSAVE_INTERVAL = 60;
     private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir") + File.separator + "fstemp");
     private static final Map<String, String> MIME_CACHE = new HashMap<>();
     private static final Map<String, String> DESCRIPTION_CACHE = new HashMap<>();
@@ -113,7 +118,9 @@ public class BrowserFrame extends JFrame {
                 // If a file system has been loaded, save it before exiting.
                 if(Main.fs != null) {
                     try {
+                        Main.fs.stopAutosave();
                         Main.fs.writeContainer();
+                        Main.fs.awaitSave();
                     } catch(IOException ex) {
                         ex.printStackTrace();
                     }
@@ -203,6 +210,7 @@ public class BrowserFrame extends JFrame {
                             JOptionPane.ERROR_MESSAGE);
                     return;
                 }
+                if(Main.fs != null) Main.fs.stopAutosave();
                 Main.fs = new FileSystem(FILE_CHOOSER.getSelectedFile());
                 setTitle("File System Container Manager: " + Main.fs.container.getName());
                 init();
@@ -217,6 +225,7 @@ public class BrowserFrame extends JFrame {
             int rt = FILE_CHOOSER.showOpenDialog(this);
             if(rt == JFileChooser.APPROVE_OPTION) {
                 try {
+                    if(Main.fs != null) Main.fs.stopAutosave();
                     FileSystem.load(FILE_CHOOSER.getSelectedFile());
                     setTitle("File System Container Manager: " + Main.fs.container.getName());
                     init();
@@ -368,7 +377,7 @@ public class BrowserFrame extends JFrame {
             if(row == 0 && !currentRoot.isRoot()) continue;
             toRemove.add(currentRoot.children.get(row - (currentRoot.isRoot() ? 0 : 1)));
         }
-        currentRoot.children.removeAll(toRemove);
+        currentRoot.removeChildren(toRemove);
         update(currentRoot);
     }
 
@@ -472,6 +481,8 @@ public class BrowserFrame extends JFrame {
         importFile.setEnabled(true);
         setTitle(Main.fs.container.getName());
         update(Main.fs.root);
+        // Saves are captured on the event dispatch thread, which is the only thread that modifies the file system
+        Main.fs.startAutosave(AUTOSAVE_INTERVAL, EventQueue::invokeLater);
     }
 
     protected void updateButtons() {
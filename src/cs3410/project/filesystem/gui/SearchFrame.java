@@ -8,7 +8,12 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 import javax.swing.BoxLayout;
 import javax.swing.JCheckBox;
@@ -20,7 +25,6 @@ import javax.swing.JTextField;
 import javax.swing.table.AbstractTableModel;
 
 import cs3410.project.filesystem.FSFile;
-import cs3410.project.filesystem.FileSet;
 import cs3410.project.filesystem.FileSystemObject;
 import cs3410.project.filesystem.Main;
 import cs3410.project.filesystem.Utils;
@@ -118,25 +122,32 @@ public class SearchFrame extends JFrame {
      * regardless of case.
      */
     private void search() {
-        FileSet found = new FileSet();
+        List<FileSystemObject> found = new ArrayList<>();
         if(!query.getText().isBlank()) {
-            Main.fs.traverse(Main.fs.root, obj -> {
-                if(useRegex.isSelected()) {
-                    try {
-                        if(obj.name.matches(query.getText())) found.add(obj);
-                    } catch(PatternSyntaxException ignore) {}
-                } else if(matchExact.isSelected()) {
-                    if(obj.name.equals(query.getText())) found.add(obj);
-                } else if(matchCase.isSelected()) {
-                    if(obj.name.contains(query.getText())) found.add(obj);
-                } else {
-                    if(obj.name.toLowerCase().contains(query.getText().toLowerCase())) found.add(obj);
+            Predicate<String> matches;
+            String text = query.getText();
+            if(useRegex.isSelected()) {
+                try {
+                    matches = Pattern.compile(text).asMatchPredicate();
+                } catch(PatternSyntaxException ignore) {
+                    matches = name -> false;
                 }
-            });
+            } else if(matchExact.isSelected()) {
+                matches = text::equals;
+            } else if(matchCase.isSelected()) {
+                matches = name -> name.contains(text);
+            } else {
+                String lowerCase = text.toLowerCase();
+                matches = name -> name.toLowerCase().contains(lowerCase);
+            }
+            Predicate<String> filter = matches;
+            // The tree is searched on every core. Objects with the same name in different directories are all
+            // kept, and the stable sort leaves them in the order in which they appear in the tree.
+            found = Main.fs.walk(Main.fs.root).parallel().filter(obj -> filter.test(obj.name))
+                    .collect(Collectors.toCollection(ArrayList::new));
+            found.sort(null);
         }
-        results = new FileSystemObject[found.size()];
-        for(int i = 0; i < results.length; i++)
-            results[i] = found.get(i);
+        results = found.toArray(new FileSystemObject[0]);
         update();
     }
 